@@ -1,14 +1,29 @@
 import java.io.ObjectInputStream;
-import java.rmi.Naming;
+import java.io.Serializable;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Broker class
@@ -20,15 +35,67 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 	 */
 	private static final long serialVersionUID = -8209183005251194195L;
 	
+	// Customers worked on at once - override with -Dbroker.workers=n
+	public static final int DEFAULT_WORKERS = 8;
+	
+	// Customers waiting for a worker before we start turning them away - override with -Dbroker.queueSize=n
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+	
+	// From this many tariffs on, quotes use the tariff index - override with -Dbroker.indexThreshold=n
+	public static final int DEFAULT_INDEX_THRESHOLD = 64;
+	
+	// How long a customer has to answer an offer - override with -Dbroker.offerTimeout=ms
+	public static final long DEFAULT_OFFER_TIMEOUT = 600000;
+	
+	// How long to wait for companies to send their tariffs - override with -Dbroker.tariffDeadline=ms
+	public static final long DEFAULT_TARIFF_DEADLINE = 5000;
+	
+	// Threads fetching tariffs from companies missing from the catalog - override with -Dbroker.tariffFetchers=n
+	public static final int DEFAULT_TARIFF_FETCHERS = 16;
+	
+	// Shared by every quote. Bounded, as a fetch abandoned at the deadline keeps its thread until
+	// the RMI response timeout ends the call (see StubResolver.limitResponseTime).
+	private static final ExecutorService tariffFetchers = tariffFetchers();
+	
 	private String name;
 	
-	// Customers mapped to object stubs and to their histories
+	// Customers mapped to object stubs and to summaries of their histories
 	private Map<String, MeterInterface> customers;
-	private Map<String, List<Integer>> histories;
+	private Map<String, UsageSummary> summaries;
+	
+	// Accepted offers whose customer hasn't been moved yet, by switch id - resumed after a restart
+	private Map<String, PendingSwitch> switches;
 	
 	// For saving - transient as non-serializable 
 	private transient DataPersistence dp;
 	
+	// Latest copy of the central tariff catalog - volatile as quotes read it while it's being refreshed
+	private transient volatile TariffSnapshot tariffs;
+	
+	// Held while refreshing the catalog - not the broker's own lock, as refreshing makes remote calls
+	private transient Object catalogLock;
+	
+	// Finds the cheapest tariff without pricing them all - kept in step with the tariffs we quote on
+	private transient TariffIndex tariffIndex;
+	
+	// Quotes customers in batches - null until the first quote, or if batching is turned off
+	private transient QuoteEngine quoteEngine;
+	
+	// Quotes already worked out, by summary and tariffs
+	private transient QuoteCache quoteCache;
+	
+	// Works on customers' requests, behind a bounded admission queue
+	private transient ThreadPoolExecutor workers;
+	
+	// Time requests spent queued, for getAverageWait
+	private transient AtomicLong requestsStarted;
+	private transient AtomicLong totalWait;
+	
+	// Offers sent to customers that haven't been answered yet, by offer id
+	private transient Map<String, PendingOffer> pendingOffers;
+	private transient Timer offerTimer;
+	private transient AtomicLong offersSent;
+	
 	/**
 	 * Constructs a new Broker
 	 * 
@@ -40,13 +107,36 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 		
 		this.name = name;
 		
-		customers = new HashMap<String, MeterInterface>();
-		histories = new HashMap<String, List<Integer>>();
+		// Concurrent as they're saved on the persistence thread while RMI and worker threads update them
+		customers = new ConcurrentHashMap<String, MeterInterface>();
+		summaries = new ConcurrentHashMap<String, UsageSummary>();
+		switches = new HashMap<String, PendingSwitch>();
+		catalogLock = new Object();
 		
 		dp = new DataPersistence();
 		dp.saveBroker(this);
 	}
 	
+	/**
+	 * Constructor - restores a broker from saved state (see EntityCodec)
+	 * 
+	 * @param name String
+	 * @param customers Map<String, MeterInterface>
+	 * @param summaries Map<String, UsageSummary>
+	 * @throws RemoteException
+	 */
+	Broker(String name, Map<String, MeterInterface> customers, Map<String, UsageSummary> summaries) throws RemoteException {
+		super();
+		
+		this.name = name;
+		this.customers = new ConcurrentHashMap<String, MeterInterface>(customers);
+		this.summaries = new ConcurrentHashMap<String, UsageSummary>(summaries);
+		this.switches = new HashMap<String, PendingSwitch>();
+		catalogLock = new Object();
+		
+		dp = new DataPersistence();
+	}
+	
 	/**
 	 * Handles deserialization of the object
 	 * 
@@ -56,6 +146,14 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 	private void readObject(ObjectInputStream inputStream) {
 		try {
 			inputStream.defaultReadObject();
+			
+			// Saved before switches were recorded, or with full histories rather than summaries
+			if( switches == null )
+				switches = new HashMap<String, PendingSwitch>();
+			customers = new ConcurrentHashMap<String, MeterInterface>(customers);
+			summaries = summaries == null ? new ConcurrentHashMap<String, UsageSummary>()
+					: new ConcurrentHashMap<String, UsageSummary>(summaries);
+			catalogLock = new Object();
 	
 			dp = new DataPersistence();
 		} catch (Exception e) {
@@ -73,15 +171,12 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 	 */
 	public boolean receiveRequest(final String id, MeterInterface m) throws RemoteException {
 		
-		print("Broker " + name + " has a new customer " + id + ".\n" );
-			
-		// Add meter to the customer list
-		customers.put(id, m);
-		dp.saveBroker(this);
-
-		// Create new thread so we can run the process with a delay without blocking the meter (who's waiting for the return)
-		Thread thread = new Thread () {
+		// Run the process on a worker so we don't block the meter (who's waiting for the return)
+		final long queued = System.currentTimeMillis();
+		Runnable request = new Runnable () {
 			  public void run () {
+				  started(queued);
+				  
 				  // Sleep for testing purposes only
 				  try {
 						Thread.sleep(30000);
@@ -89,8 +184,8 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 					  e.printStackTrace();
 				  }
 				  
-				  // If the getHistory() method is successful
-				  if( getHistory(id) ) {
+				  // If the getUsageSummary() method is successful
+				  if( getUsageSummary(id) ) {
 					  
 					  // Sleep for testing purposes only
 					  try {
@@ -99,22 +194,126 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 						  e.printStackTrace();
 					  }
 					  
-					  // Get the best deal
-					  String powerCompany = calculateBestDeal(id);
-					
-					  // Send it
-					  sendDeal(id, powerCompany);
+					  // Quote with everyone else waiting, unless batching is turned off (-Dbroker.quoteWindow=0)
+					  QuoteEngine quotes = quoteEngine();
+					  if( quotes != null ) {
+						  quotes.submit(id, summaries.get(id));
+					  } else {
+						  // Get the best deal
+						  String powerCompany = calculateBestDeal(id);
+						
+						  // Send it - as for a batch, a customer we couldn't quote is let go
+						  if( powerCompany == null ) {
+							  print("Sorry - no deal could be found for customer " + id + ".\n");
+							  finished(id);
+						  } else {
+							  sendDeal(id, powerCompany);
+						  }
+					  }
 				  } else {
 					  // Hopefully shouldn't ever reach here.
 					  print("Sorry - an error has occured with customer" + id + ".\n");
+					  finished(id);
 				  }
 			}
 		};
-		thread.start();
+		
+		// Add meter to the customer list before the request can run - it may make an offer straight away
+		MeterInterface previous = customers.put(id, m);
+		
+		try {
+			workers().execute(request);
+		} catch (RejectedExecutionException e) {
+			// Every worker is busy and the queue is full - tell the meter rather than pile up more work
+			if( previous == null )
+				customers.remove(id);
+			else
+				customers.put(id, previous);
+			print("Too busy to take on customer " + id + " - " + getQueueDepth() + " requests already waiting.\n");
+			return false;
+		}
+		
+		print("Broker " + name + " has a new customer " + id + ".\n" );
+		dp.scheduleSaveBroker(this);
 		
 		return true;		
 	}
 	
+	/**
+	 * Creates the pool fetching tariffs from companies - idle threads time out
+	 * 
+	 * @return ExecutorService
+	 */
+	private static ExecutorService tariffFetchers() {
+		int threads = Math.max(1, Integer.getInteger("broker.tariffFetchers", DEFAULT_TARIFF_FETCHERS));
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "tariff-fetcher");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Gets the worker pool, creating it on first use
+	 * 
+	 * @return ThreadPoolExecutor
+	 */
+	private synchronized ThreadPoolExecutor workers() {
+		if( workers == null ) {
+			int threads = Math.max(1, Integer.getInteger("broker.workers", DEFAULT_WORKERS));
+			int queueSize = Math.max(1, Integer.getInteger("broker.queueSize", DEFAULT_QUEUE_SIZE));
+			
+			workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "broker-" + name + "-worker");
+						}
+					});
+			requestsStarted = new AtomicLong();
+			totalWait = new AtomicLong();
+		}
+		return workers;
+	}
+	
+	/**
+	 * Records how long a request waited for a worker
+	 * 
+	 * @param queued long : when it was accepted
+	 */
+	private void started(long queued) {
+		requestsStarted.incrementAndGet();
+		totalWait.addAndGet(System.currentTimeMillis() - queued);
+	}
+	
+	/**
+	 * Gets the number of requests waiting for a worker
+	 * 
+	 * @Override
+	 * @return int
+	 * @throws RemoteException
+	 */
+	public int getQueueDepth() throws RemoteException {
+		return workers().getQueue().size();
+	}
+	
+	/**
+	 * Gets the average time requests have waited for a worker
+	 * 
+	 * @Override
+	 * @return long : milliseconds
+	 * @throws RemoteException
+	 */
+	public long getAverageWait() throws RemoteException {
+		workers();
+		long started = requestsStarted.get();
+		return started == 0 ? 0 : totalWait.get() / started;
+	}
+	
 	/**
 	 * Calculates the best deal for a given meter
 	 * 
@@ -124,82 +323,46 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 	private String calculateBestDeal(String id) {
 		print("Calculating best deal for meter " + id + ".\n");
 		
-		// Get the history of the meter
-		List<Integer> readings = histories.get(id);
+		// Get the summary of the meter's history
+		UsageSummary usage = summaries.get(id);
+		if( usage == null ) {
+			print("No readings summary for meter " + id + " - unable to quote.\n");
+			return null;
+		}
 		
 		try {			
 			// Obtain list of companies
-			@SuppressWarnings("unchecked")
-			RemoteListInterface<String> companyListRLI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/companyList");
-			ArrayList<String> companyList = (ArrayList<String>) companyListRLI.accessList();
+			// Only fetches companies added since we last looked
+			ArrayList<String> companyList = DirectoryCache.<String>forName("companyList").list();
 			
-			Random r = new Random();
+			TariffSnapshot catalog = tariffCatalog();
+			Map<String, Tariff> fetched = new HashMap<String, Tariff>();
+			Map<String, Tariff> tariffDetails = fetchTariffs(companyList, catalog, fetched);
 			
-			// Cost of the history on the best tariff and name of the company
-			int bestTariff = Integer.MAX_VALUE;
-			String bestTariffName = null;
-		
-			for( String company : companyList ) {
-				try {
-					Thread.sleep(10000);
-					PowerCompanyInterface pc = (PowerCompanyInterface) Naming.lookup("rmi://localhost/" + company);
-					
-					print("Updating tariff details for " + company);
-
-					// Get tariff details
-					Tariff t = pc.getTariffDetails();
-					int dayCost = t.getDayCost();
-					int nightCost = t.getNightCost();
-					int discount = t.getDiscount();
-					int threshold = t.getThreshold();
-					
-					// Calculate total
-					int total = 0;
-					for( Integer reading : readings ) {
-						if( reading == 0 ) {
-							// Do nothing
-						} else {
-							// Get a random amount (less than half) of readings that occurred at night
-							int nightUnits = r.nextInt(reading/2);
-							int dayUnits = reading - nightUnits;
-
-							int semiTotal = (dayUnits*dayCost) + (nightUnits*nightCost);
-
-							// Apply discount if neccesary 
-							if( reading >= threshold) {
-								semiTotal = semiTotal * discount;
-							}
-							total += semiTotal;
-						}
-						
-					}
-					
-					print("Power Company " + company + " would have cost meter " + id + " " + total + " for their previous readings.\n");
-					
-					// If better, update best details
-					if( total < bestTariff ) {
-						bestTariff = total;
-						bestTariffName = company;
-					}
-					
-				} catch (Exception e) {
-					if( connectionLost(e) ) {
-						// We don't want to waste time trying to connect to a lost power company
-						// Just ignore and move on
-						continue;
-					} else {
-						e.printStackTrace();
-					}
-				}
+			// Already quoted on these readings and tariffs - a repeat request, or a retry
+			QuoteCache cache = quoteCache();
+			long version = QuoteCache.version(catalog, tariffDetails.size() - fetched.size(), fetched);
+			String cached = cache.get(usage, version);
+			if( cached != null ) {
+				print("Best tariff for meter " + id + " is " + cached + " (" + cache.stats() + ")");
+				return cached;
 			}
 			
+			// Large markets go through the index rather than pricing every tariff
+			String bestTariffName;
+			if( isIndexed(tariffDetails) )
+				bestTariffName = cheapestIndexed(id, usage, companyList, tariffDetails);
+			else
+				bestTariffName = cheapestPriced(id, usage, companyList, tariffDetails);
+			cache.put(usage, version, bestTariffName);
+			
 			print("Best tariff for meter " + id + " is " + bestTariffName);
 			return bestTariffName;
 		} catch (Exception e) {
 			// Lost connection to server - vital we regain it to continue
 			if( connectionLost(e) ) {
 				reconnectServer();
-				calculateBestDeal(id);
+				return calculateBestDeal(id);
 			} else {
 				e.printStackTrace();
 			}
@@ -208,38 +371,333 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 	}
 
 	/**
-	 * Sends a deal to the customer 
+	 * Gets the quote cache, creating it on first use
+	 * 
+	 * @return QuoteCache
+	 */
+	private synchronized QuoteCache quoteCache() {
+		if( quoteCache == null )
+			quoteCache = new QuoteCache();
+		return quoteCache;
+	}
+	
+	/**
+	 * Gets the quote engine, creating it on first use
+	 * 
+	 * @return QuoteEngine : or null if batching is turned off
+	 */
+	private synchronized QuoteEngine quoteEngine() {
+		if( quoteEngine == null && Long.getLong("broker.quoteWindow", QuoteEngine.DEFAULT_WINDOW) > 0 ) {
+			quoteEngine = new QuoteEngine("broker-" + name, quoteCache()) {
+				// Version of the tariffs just fetched - a batch is fetched and quoted on the engine's one thread
+				private long version;
+				
+				protected Map<String, Tariff> fetchTariffs() throws Exception {
+					List<String> companyList;
+					try {
+						companyList = DirectoryCache.<String>forName("companyList").list();
+					} catch (RemoteException e) {
+						// Lost connection to server - vital we regain it to continue
+						if( !connectionLost(e) )
+							throw e;
+						reconnectServer();
+						companyList = DirectoryCache.<String>forName("companyList").list();
+					}
+					
+					// Every published tariff in one call - companies missing from it are asked directly, all at once
+					TariffSnapshot catalog = tariffCatalog();
+					Map<String, Tariff> fetched = new HashMap<String, Tariff>();
+					Map<String, Tariff> tariffs = Broker.this.fetchTariffs(companyList, catalog, fetched);
+					
+					// Keyed like single quotes, so both share the cache
+					version = QuoteCache.version(catalog, tariffs.size() - fetched.size(), fetched);
+					return tariffs;
+				}
+				
+				protected long tariffVersion(Map<String, Tariff> tariffs) {
+					return version;
+				}
+				
+				protected TariffIndex tariffIndex(Map<String, Tariff> tariffs) {
+					// The same index single quotes use - kept up to date as tariffs arrive
+					return isIndexed(tariffs) ? Broker.this.tariffIndex() : null;
+				}
+				
+				protected void send(Map<String, String> best) {
+					sendDeals(best);
+				}
+			};
+		}
+		return quoteEngine;
+	}
+	
+	/**
+	 * Sends the deals from a batch of quotes, several at once on the workers
+	 * 
+	 * @param best Map<String, String> : cheapest company by meter id
+	 */
+	private void sendDeals(Map<String, String> best) {
+		print("Quoted " + best.size() + " customers together - " + quoteEngine.stats() + " so far, " + quoteCache().stats() + ".\n");
+		
+		for( final Map.Entry<String, String> quote : best.entrySet() ) {
+			if( quote.getValue() == null ) {
+				print("Sorry - no deal could be found for customer " + quote.getKey() + ".\n");
+				finished(quote.getKey());
+				continue;
+			}
+			
+			print("Best tariff for meter " + quote.getKey() + " is " + quote.getValue());
+			Runnable send = new Runnable() {
+				public void run() {
+					sendDeal(quote.getKey(), quote.getValue());
+				}
+			};
+			try {
+				workers().execute(send);
+			} catch (RejectedExecutionException e) {
+				send.run();
+			}
+		}
+	}
+	
+	/**
+	 * Finds the cheapest company by pricing every tariff
+	 * 
+	 * @param id String : of the meter
+	 * @param usage UsageSummary
+	 * @param companyList List<String>
+	 * @param tariffDetails Map<String, Tariff>
+	 * @return String : or null if there are no tariffs
+	 */
+	private String cheapestPriced(String id, UsageSummary usage, List<String> companyList, Map<String, Tariff> tariffDetails) {
+		// Cost of the history on the best tariff and name of the company
+		long bestTariff = Long.MAX_VALUE;
+		String bestTariffName = null;
+	
+		for( String company : companyList ) {
+			// Get tariff details - skipping companies that didn't answer in time
+			Tariff t = tariffDetails.get(company);
+			if( t == null )
+				continue;
+			
+			// Priced from the summary - the same cost however long the history is
+			long total = t.price(usage);
+			
+			print("Power Company " + company + " would have cost meter " + id + " " + total + " for their previous readings.\n");
+			
+			// If better, update best details
+			if( total < bestTariff ) {
+				bestTariff = total;
+				bestTariffName = company;
+			}
+		}
+		return bestTariffName;
+	}
+	
+	/**
+	 * Finds the cheapest company through the tariff index. With -Dbroker.verifyIndex=true every 
+	 * tariff is priced as well, and any disagreement is reported.
+	 * 
+	 * @param id String : of the meter
+	 * @param usage UsageSummary
+	 * @param companyList List<String>
+	 * @param tariffDetails Map<String, Tariff>
+	 * @return String : or null if there are no tariffs
+	 */
+	private String cheapestIndexed(String id, UsageSummary usage, List<String> companyList, Map<String, Tariff> tariffDetails) {
+		// Kept up to date as tariffs arrive (see tariffCatalog and fetchTariffs)
+		TariffIndex index = tariffIndex();
+		
+		String best = index.cheapest(usage);
+		if( best == null )
+			return null;
+		
+		// The index can hold a company we couldn't get a tariff from this time round
+		if( !tariffDetails.containsKey(best) )
+			return cheapestPriced(id, usage, companyList, tariffDetails);
+		
+		long cost = tariffDetails.get(best).price(usage);
+		print("Power Company " + best + " would have cost meter " + id + " " + cost + " for their previous readings - the cheapest of " + index.size() + ".\n");
+		
+		if( Boolean.getBoolean("broker.verifyIndex") ) {
+			String checked = cheapestPriced(id, usage, companyList, tariffDetails);
+			long checkedCost = tariffDetails.get(checked).price(usage);
+			if( checkedCost != cost )
+				print("Tariff index chose " + best + " (" + cost + ") but " + checked + " costs " + checkedCost + ".\n");
+		}
+		return best;
+	}
+	
+	/**
+	 * Checks if a market is large enough for quotes to go through the tariff index
+	 * 
+	 * @param tariffs Map<String, Tariff>
+	 * @return boolean
+	 */
+	private static boolean isIndexed(Map<String, Tariff> tariffs) {
+		return tariffs.size() >= Integer.getInteger("broker.indexThreshold", DEFAULT_INDEX_THRESHOLD);
+	}
+	
+	/**
+	 * Gets the tariff index, creating it on first use
+	 * 
+	 * @return TariffIndex
+	 */
+	private synchronized TariffIndex tariffIndex() {
+		if( tariffIndex == null )
+			tariffIndex = new TariffIndex();
+		return tariffIndex;
+	}
+	
+	/**
+	 * Gets the latest tariff catalog - the whole catalog the first time, only what's changed after that
+	 * 
+	 * @return TariffSnapshot : or null if the catalog can't be reached
+	 */
+	private TariffSnapshot tariffCatalog() {
+		synchronized( catalogLock ) {
+			try {
+				TariffCatalogInterface catalog = (TariffCatalogInterface) StubResolver.lookup("rmi://localhost/tariffCatalog");
+				
+				TariffSnapshot current = tariffs;
+				TariffSnapshot delta = current == null ? null : catalog.changesSince(current.getVersion());
+				TariffSnapshot updated = delta == null ? null : current.merge(delta);
+				
+				// First time, or the catalog has been recreated since
+				if( updated == null ) {
+					updated = catalog.snapshot();
+					delta = updated;
+				}
+				
+				// The index follows the catalog one change at a time, rather than being checked every quote
+				TariffIndex index = tariffIndex();
+				if( delta.isComplete() ) {
+					index.sync(delta.getTariffs());
+				} else {
+					for( String company : delta.companies() )
+						index.update(company, delta.get(company));
+				}
+				
+				tariffs = updated;
+			} catch (Exception e) {
+				StubResolver.failed("tariffCatalog", e);
+				print("Tariff catalog unavailable - asking each power company directly.");
+				tariffs = null;
+			}
+			return tariffs;
+		}
+	}
+	
+	/**
+	 * Gets the tariffs of a list of companies. Those in the catalog are used as they are; the 
+	 * rest are asked concurrently and any that don't answer before the deadline are skipped.
+	 * 
+	 * @param companies List<String>
+	 * @param catalog TariffSnapshot : may be null
+	 * @param fetched Map<String, Tariff> : tariffs asked for directly are also added to this - may be null
+	 * @return Map<String, Tariff> : only the companies we have a tariff for
+	 * @throws InterruptedException
+	 */
+	private Map<String, Tariff> fetchTariffs(List<String> companies, TariffSnapshot catalog, Map<String, Tariff> fetched) throws InterruptedException {
+		Map<String, Tariff> found = new HashMap<String, Tariff>();
+		
+		final List<String> asked = new ArrayList<String>();
+		List<Callable<Tariff>> fetches = new ArrayList<Callable<Tariff>>();
+		for( final String company : companies ) {
+			Tariff t = catalog == null ? null : catalog.get(company);
+			if( t != null ) {
+				found.put(company, t);
+				continue;
+			}
+			
+			asked.add(company);
+			fetches.add(new Callable<Tariff>() {
+				public Tariff call() throws Exception {
+					PowerCompanyInterface pc = (PowerCompanyInterface) StubResolver.lookup("rmi://localhost/" + company);
+					print("Updating tariff details for " + company);
+					return pc.getTariffDetails();
+				}
+			});
+		}
+		if( fetches.isEmpty() )
+			return found;
+		
+		// Unfinished fetches are cancelled once the deadline passes
+		long deadline = Long.getLong("broker.tariffDeadline", DEFAULT_TARIFF_DEADLINE);
+		List<Future<Tariff>> results = tariffFetchers.invokeAll(fetches, deadline, TimeUnit.MILLISECONDS);
+		
+		for( int i = 0; i < results.size(); i++ ) {
+			String company = asked.get(i);
+			Future<Tariff> result = results.get(i);
+			try {
+				if( result.isCancelled() ) {
+					print("Power company " + company + " didn't send its tariff within " + deadline + "ms - skipping it.");
+					continue;
+				}
+				Tariff t = result.get();
+				found.put(company, t);
+				if( fetched != null )
+					fetched.put(company, t);
+				tariffIndex().update(company, t);
+			} catch (ExecutionException e) {
+				Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				if( connectionLost(cause) ) {
+					// We don't want to waste time trying to connect to a lost power company
+					// Just ignore and move on
+					StubResolver.failed(company, cause);
+					print("Power company " + company + " can't be reached - skipping it.");
+				} else {
+					cause.printStackTrace();
+				}
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Sends a deal to the customer's inbox - their answer comes back later through respondToOffer
 	 * 
 	 * @param id String
 	 * @param pcName String
 	 * @return boolean
 	 */
 	private boolean sendDeal(String m, String pcName) {			
+		final String offerId = name + "-" + m + "-" + nextOfferNumber();
 		try {
-			// Gets the details of the chosen tariff again
-			PowerCompanyInterface pc = (PowerCompanyInterface) Naming.lookup("rmi://localhost/" + pcName);
-	
+			// The tariff we quoted on, rather than fetching it again
+			TariffSnapshot catalog = tariffs;
+			Tariff t = catalog == null ? null : catalog.get(pcName);
+			if( t == null ) {
+				PowerCompanyInterface pc = (PowerCompanyInterface) StubResolver.lookup("rmi://localhost/" + pcName);
+				t = pc.getTariffDetails();
+			}
+			
+			long timeout = Long.getLong("broker.offerTimeout", DEFAULT_OFFER_TIMEOUT);
+			Offer offer = new Offer(offerId, name, pcName, t.toString(), System.currentTimeMillis() + timeout);
+			
+			// Pending before it's delivered - the customer may answer straight away
+			PendingOffer pending = new PendingOffer(m, pcName);
+			pendingOffers().put(offerId, pending);
+			
+			// Lapses if the customer never answers - timed from now, so a delivery that hangs lapses too
+			pending.expiry = new TimerTask() {
+				public void run() {
+					expire(offerId);
+				}
+			};
+			offerTimer().schedule(pending.expiry, timeout);
+			
 			// Sends the offer to the client
 			print("Sending offer to meter " + m);
 			
-			boolean accepted = customers.get(m).receiveOffer(pcName, pc.getTariffDetails().toString());
-			
-			// Processes response
-			if( accepted ) {
-				print(m + " has accepted the deal you suggested with " + pcName + ".\n");
-				// Unregister from old - while returns a boolean should always be true.
-				unregister(m);
-				// Register with new - while returns a boolean should always be true.
-				register(m, pc, pcName);
-				// Update customer's listings.
-				customers.get(m).setPowerCompany(pc);
-			} else
-				print(m + " has rejected the deal you suggest with " + pcName + ".\n");
-				
-			// No longer a customer
-			customers.remove(m);
-			histories.remove(m);
+			if( !customers.get(m).deliverOffer(offer) ) {
+				print(m + " couldn't take the offer with " + pcName + ".\n");
+				withdraw(offerId);
+				finished(m);
+				return false;
+			}
 		} catch (Exception e) {
+			withdraw(offerId);
 			if( connectionLost(e)) {
 				// Can't be sure what we lost connection to so try both
 				reconnectPowerCompany(pcName);
@@ -248,119 +706,269 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 				return true;
 			} else {
 				print("Sorry an error has occured \n");
+				finished(m);
 				return false;
 			}
 		}
-			
-		dp.saveBroker(this);
+		
 		return true;
 	}
-
+	
 	/**
-	 * Gets the history of the meter via a PULL request
+	 * Drops an offer that couldn't be delivered, along with its expiry
 	 * 
-	 * @param id String : Meter id
-	 * @return boolean
+	 * @param offerId String
 	 */
-	private boolean getHistory(String id) {
-		try {
-			ArrayList<Integer> history = customers.get(id).getHistory(name);
-			
-			print("Broker " + name + " has received " + id + "'s readings history"+ ".\n");
-
-			histories.put(id, history);
-			
-			// Update saved version of broker
-			dp.saveBroker(this);
-			
+	private void withdraw(String offerId) {
+		PendingOffer pending = pendingOffers().remove(offerId);
+		if( pending != null && pending.expiry != null )
+			pending.expiry.cancel();
+	}
+	
+	/**
+	 * Receives a customer's answer to an offer sent by sendDeal
+	 * 
+	 * @Override
+	 * @param offerId String
+	 * @param meterId String
+	 * @param accepted boolean
+	 * @return boolean : false if the offer is unknown or has expired
+	 * @throws RemoteException
+	 */
+	public boolean respondToOffer(String offerId, final String meterId, boolean accepted) throws RemoteException {
+		final PendingOffer pending = pendingOffers().get(offerId);
+		if( pending == null || !pending.meterId.equals(meterId) || !pendingOffers().remove(offerId, pending) )
+			return false;
+		if( pending.expiry != null )
+			pending.expiry.cancel();
+		
+		if( !accepted ) {
+			print(meterId + " has rejected the deal you suggest with " + pending.pcName + ".\n");
+			finished(meterId);
 			return true;
-		} catch (RemoteException e) {
-			// Reconnect and try again
-			if( connectionLost(e) ) {
-				reconnectMeter(id);
-				getHistory(id);
-				return true;
-			} else {
+		}
+		
+		print(meterId + " has accepted the deal you suggested with " + pending.pcName + ".\n");
+		
+		// Record the switch before starting it so it's resumed if we go down part way
+		String switchId = offerId + "@" + System.currentTimeMillis();
+		PendingSwitch move = new PendingSwitch(meterId, pending.pcName);
+		synchronized( switches ) {
+			switches.put(switchId, move);
+		}
+		dp.saveBroker(this);
+		
+		startSwitch(switchId, move);
+		return true;
+	}
+	
+	/**
+	 * Restarts the switches that hadn't finished when the broker was last saved
+	 */
+	void resumeSwitches() {
+		Map<String, PendingSwitch> unfinished;
+		synchronized( switches ) {
+			unfinished = new HashMap<String, PendingSwitch>(switches);
+		}
+		
+		for( Map.Entry<String, PendingSwitch> move : unfinished.entrySet() ) {
+			print("Resuming move of customer " + move.getValue().meterId + " to " + move.getValue().pcName + ".\n");
+			startSwitch(move.getKey(), move.getValue());
+		}
+	}
+	
+	/**
+	 * Quotes again for the customers who were waiting on us when the broker was last saved. Their
+	 * requests and offers only lived in memory, so they'd otherwise never hear back.
+	 */
+	void requoteCustomers() {
+		Set<String> moving = new HashSet<String>();
+		synchronized( switches ) {
+			for( PendingSwitch move : switches.values() )
+				moving.add(move.meterId);
+		}
+		
+		for( Map.Entry<String, MeterInterface> customer : new HashMap<String, MeterInterface>(customers).entrySet() ) {
+			String id = customer.getKey();
+			if( moving.contains(id) )
+				continue;
+			
+			print("Quoting again for customer " + id + ".\n");
+			try {
+				if( !receiveRequest(id, customer.getValue()) )
+					finished(id);
+			} catch (RemoteException e) {
 				e.printStackTrace();
+				finished(id);
 			}
-			return false;
 		}
 	}
 	
 	/**
-	 * Unregisters a meter from a power company
+	 * Runs a switch on a worker so the caller isn't kept waiting
+	 * 
+	 * @param switchId String
+	 * @param move PendingSwitch
+	 */
+	private void startSwitch(final String switchId, final PendingSwitch move) {
+		Runnable task = new Runnable() {
+			public void run() {
+				completeSwitch(switchId, move);
+			}
+		};
+		try {
+			workers().execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Moves a customer who has accepted an offer to their new power company. The meter does the
+	 * move itself in one call - retries reuse the switch id so nothing is done twice.
 	 * 
-	 * @param id String : id of the meter
+	 * @param switchId String
+	 * @param move PendingSwitch
 	 * @return boolean
 	 */
-	private boolean unregister(String id) {
+	private boolean completeSwitch(String switchId, PendingSwitch move) {
+		String m = move.meterId;
+		String pcName = move.pcName;
+		long start = System.currentTimeMillis();
+		
 		try {
-			MeterInterface m = customers.get(id);
-			
-			// Can only unregister if m has a power company already
-			if( m.hasPowerCompany() ) {
-				String pcName = m.getPowerCompanyName();
-				PowerCompanyInterface pc = (PowerCompanyInterface) Naming.lookup("rmi://localhost/" + pcName);
-
-				print("Unregistering customer " + id + " from " + pcName+ ".\n");
+			MeterInterface meter = customers.get(m);
+			if( meter != null ) {
+				PowerCompanyInterface pc = (PowerCompanyInterface) StubResolver.lookup("rmi://localhost/" + pcName);
 				
-				// Always returns true
-				return pc.removeCustomer(id);
-			} else
-				return true;
-		} catch (Exception e) {
-			if( connectionLost(e) ) {
-				// Reconnect to both meter and power company
-				reconnectMeter(id);
-				try {
-					reconnectPowerCompany(customers.get(id).getPowerCompanyName());
-				} catch (RemoteException e1) {
-					// shouldn't be an issue
+				print("Moving customer " + m + " to " + pcName + ".\n");
+				if( !meter.switchSupplier(switchId, pcName, pc) ) {
+					print(pcName + " wouldn't take on customer " + m + " - the move will be retried when the broker restarts.\n");
+					return false;
 				}
-				
-				// Restart method
-				unregister(id);
-				
-				return true;
+			}
+		} catch (Exception e) {
+			if( connectionLost(e)) {
+				// Can't be sure what we lost connection to so try both
+				reconnectPowerCompany(pcName);
+				reconnectMeter(m);
+				return completeSwitch(switchId, move);
 			} else {
-				// Should hopefully not reach here
-				e.printStackTrace();
+				print("Sorry an error has occured moving customer " + m + " - the move will be retried when the broker restarts.\n");
 				return false;
 			}
 		}
+		
+		print("Moved customer " + m + " to " + pcName + " in " + (System.currentTimeMillis() - start) + "ms.\n");
+		
+		synchronized( switches ) {
+			switches.remove(switchId);
+		}
+		finished(m);
+		return true;
 	}
 	
 	/**
-	 * Registers a meter with it's new power company
+	 * Drops an offer the customer didn't answer in time
 	 * 
-	 * @param id String : id of the meter
-	 * @param pc PowerCompanyInterface
-	 * @param pcName String
-	 * @return
+	 * @param offerId String
 	 */
-	private boolean register(String id, PowerCompanyInterface pc, String pcName) {
+	private void expire(String offerId) {
+		PendingOffer pending = pendingOffers().remove(offerId);
+		if( pending == null )
+			return;
 		
+		print("Offer " + offerId + " to " + pending.meterId + " has expired.\n");
+		finished(pending.meterId);
+	}
+	
+	/**
+	 * Forgets a customer once we're done with them
+	 * 
+	 * @param m String : id of the meter
+	 */
+	private void finished(String m) {
+		// No longer a customer
+		customers.remove(m);
+		summaries.remove(m);
+		
+		dp.scheduleSaveBroker(this);
+	}
+	
+	/**
+	 * Gets the offers waiting for an answer, creating the map on first use
+	 * 
+	 * @return Map<String, PendingOffer>
+	 */
+	private synchronized Map<String, PendingOffer> pendingOffers() {
+		if( pendingOffers == null ) {
+			pendingOffers = new ConcurrentHashMap<String, PendingOffer>();
+			offersSent = new AtomicLong();
+		}
+		return pendingOffers;
+	}
+	
+	/**
+	 * Gets the timer that expires offers, starting its thread on first use
+	 * 
+	 * @return Timer
+	 */
+	private synchronized Timer offerTimer() {
+		if( offerTimer == null )
+			offerTimer = new Timer("broker-" + name + "-offers", true);
+		return offerTimer;
+	}
+	
+	/**
+	 * Numbers offers so each id is unique for this broker
+	 * 
+	 * @return long
+	 */
+	private long nextOfferNumber() {
+		pendingOffers();
+		return offersSent.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the number of offers waiting for customers to answer
+	 * 
+	 * @Override
+	 * @return int
+	 * @throws RemoteException
+	 */
+	public int getPendingOffers() throws RemoteException {
+		return pendingOffers().size();
+	}
+
+	/**
+	 * Gets a summary of the meter's history via a PULL request
+	 * 
+	 * @param id String : Meter id
+	 * @return boolean
+	 */
+	private boolean getUsageSummary(String id) {
 		try {
-			print("Registering customer " + id + " to " + pcName + ".\n");
+			UsageSummary usage = customers.get(id).getUsageSummary(name);
+			if( usage == null )
+				return false;
 			
-			// Always returns true
-			return pc.addCustomer(id, customers.get(id), customers.get(id).getLatestReading());
+			print("Broker " + name + " has received a summary of " + id + "'s " + usage.getCount() + " readings.\n");
+
+			summaries.put(id, usage);
+			
+			// Update saved version of broker
+			dp.scheduleSaveBroker(this);
+			
+			return true;
 		} catch (RemoteException e) {
-			// If we lost connection to one of the entities, reconnect and restart
+			// Reconnect and try again
 			if( connectionLost(e) ) {
 				reconnectMeter(id);
-				try {
-					reconnectPowerCompany(customers.get(id).getPowerCompanyName());
-				} catch (RemoteException e1) {
-					e1.printStackTrace();
-				}
-				
-				register(id, pc, pcName);
-				return true;
+				return getUsageSummary(id);
 			} else {
 				e.printStackTrace();
-				return false;
 			}
+			return false;
 		}
 	}
 	
@@ -375,6 +983,33 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 		return name;
 	}
 	
+	/**
+	 * Gets the customer stubs (for saving)
+	 * 
+	 * @return Map<String, MeterInterface>
+	 */
+	Map<String, MeterInterface> getCustomers() {
+		return customers;
+	}
+	
+	/**
+	 * Gets the summaries of customer histories (for saving)
+	 * 
+	 * @return Map<String, UsageSummary>
+	 */
+	Map<String, UsageSummary> getSummaries() {
+		return summaries;
+	}
+	
+	/**
+	 * Gets the switches still to be completed (for saving)
+	 * 
+	 * @return Map<String, PendingSwitch>
+	 */
+	Map<String, PendingSwitch> getSwitches() {
+		return switches;
+	}
+	
 	/**
 	 * Prints output to the command line, but prepends with the date and broker name
 	 * 
@@ -398,7 +1033,9 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 		// Keep trying till no more errors!
 		while( !connected ) { 
 			try {
-				PowerCompanyInterface pc = (PowerCompanyInterface) Naming.lookup(name);
+				// Drop the stub that failed and look it up again
+				StubResolver.invalidate(name);
+				PowerCompanyInterface pc = (PowerCompanyInterface) StubResolver.lookup(name);
 				pc.ping();
 				
 				print("Connection re-established to power company " + name + " - restarting current process.");
@@ -424,9 +1061,8 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 		
 		while( !connected ) { 
 			try {
-				@SuppressWarnings("unchecked")
-				RemoteListInterface<String> companyListRTI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/companyList");
-				companyListRTI.accessList();
+				// Just a liveness check - no need for the list itself
+				DirectoryCache.forName("companyList").ping();
 				print("Connection re-established to central server - restarting current process.");		
 				connected = true;
 			} catch (Exception e) {
@@ -450,7 +1086,8 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 				
 		while( !connected ) { 
 			try {
-				MeterInterface m = (MeterInterface) Naming.lookup(id);
+				StubResolver.invalidate(id);
+				MeterInterface m = (MeterInterface) StubResolver.lookup(id);
 				
 				// Test the newly found object
 				m.ping();
@@ -489,4 +1126,33 @@ public class Broker extends UnicastRemoteObject implements BrokerInterface {
 	public boolean ping() throws RemoteException {
 		return true;
 	}
+	
+	/**
+	 * A customer who has accepted an offer, waiting to be moved to their new power company
+	 */
+	static class PendingSwitch implements Serializable {
+		private static final long serialVersionUID = 2893015871632058813L;
+		
+		String meterId;
+		String pcName;
+		
+		PendingSwitch(String meterId, String pcName) {
+			this.meterId = meterId;
+			this.pcName = pcName;
+		}
+	}
+	
+	/**
+	 * An offer waiting for the customer to answer
+	 */
+	private static class PendingOffer {
+		String meterId;
+		String pcName;
+		volatile TimerTask expiry;
+		
+		PendingOffer(String meterId, String pcName) {
+			this.meterId = meterId;
+			this.pcName = pcName;
+		}
+	}
 }
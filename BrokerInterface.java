@@ -6,8 +6,13 @@ import java.rmi.RemoteException;
  */
 public interface BrokerInterface extends Remote {
 	public boolean receiveRequest(String id, MeterInterface m) throws RemoteException;
+	public boolean respondToOffer(String offerId, String meterId, boolean accepted) throws RemoteException;
 	
 	public String getName() throws RemoteException;
+	
+	public int getQueueDepth() throws RemoteException;
+	public long getAverageWait() throws RemoteException;
+	public int getPendingOffers() throws RemoteException;
 
 	public boolean ping() throws RemoteException;
 }
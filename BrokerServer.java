@@ -10,8 +10,15 @@ import java.util.Scanner;
  */
 public class BrokerServer {
 	public static void main(String[] args) {
+		StubResolver.limitResponseTime();
 		DataPersistence dp = new DataPersistence();
 		
+		// Non-interactive restore of everything saved
+		if( BulkRestore.requested(args) ) {
+			restoreAll(dp);
+			return;
+		}
+		
 		// If data exists
 		if( dp.saveDataExists() ) {
 			System.out.println("Load a broker (a) or create a new one (b)");
@@ -48,12 +55,20 @@ public class BrokerServer {
 								
 								// Reload the object
 								Broker b = dp.getBroker(name);
+								if( b == null ) {
+									System.err.println("Saved broker " + name + " is corrupt and has no usable backup - please select another.");
+									continue;
+								}
 								
 								// Rebind it and send to central server
 								try {
 									name = name.substring(0, name.length()-4);
 									Naming.rebind(name, b);
 									addToList(name);
+									
+									// Finish moving any customers we were part way through, and answer those still waiting
+									b.resumeSwitches();
+									b.requoteCustomers();
 								} catch (Exception e) {
 									// Connection error
 									System.err.println("Sorry an error has occured - please check your connection and the server's status");
@@ -106,9 +121,52 @@ public class BrokerServer {
 		}
 	}
 
+	/**
+	 * Restores every saved broker in parallel without prompting (--restore-all)
+	 * 
+	 * @param dp DataPersistence
+	 */
+	public static void restoreAll(final DataPersistence dp) {
+		List<Broker> restored = new BulkRestore<Broker>("broker") {
+			protected List<String> savedNames() {
+				return dp.getBrokerNames();
+			}
+			
+			protected Broker load(String fileName) {
+				return dp.getBroker(fileName);
+			}
+			
+			protected void register(List<String> names) throws Exception {
+				addAllToList(names);
+			}
+		}.run();
+		
+		// Finish moving any customers we were part way through, and answer those still waiting
+		for( Broker b : restored ) {
+			b.resumeSwitches();
+			b.requoteCustomers();
+		}
+	}
+
 	private static void addToList(String name) throws MalformedURLException, RemoteException, NotBoundException {
 		System.out.println("Providing broker details to the central server");
-		RemoteListInterface<String> brokerListRLI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/brokerList");
-		brokerListRLI.addObject(name);		
+		RemoteListInterface<String> brokerListRLI = (RemoteListInterface<String>) StubResolver.lookup("rmi://localhost/brokerList");
+		brokerListRLI.addObject(name);
+		LeaseRenewer.forList("brokerList").add(name);
+	}
+	
+	/**
+	 * Adds many brokers to the remote list in a single call
+	 * 
+	 * @param names List<String>
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private static void addAllToList(List<String> names) throws MalformedURLException, RemoteException, NotBoundException {
+		System.out.println("Providing details of " + names.size() + " brokers to the central server");
+		RemoteListInterface<String> brokerListRLI = (RemoteListInterface<String>) StubResolver.lookup("rmi://localhost/brokerList");
+		brokerListRLI.addObjects(names);
+		LeaseRenewer.forList("brokerList").addAll(names);
 	}
-}
+}
\ No newline at end of file
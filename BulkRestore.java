@@ -0,0 +1,223 @@
+import java.rmi.Naming;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-interactive restore of every saved entity of one type.
+ *
+ * Entities are loaded in parallel on a fork-join pool, then bound to the registry and registered
+ * with the central server a batch at a time. Throughput and time-to-ready are reported at the end.
+ * Used by the servers when started with --restore-all.
+ */
+public abstract class BulkRestore<T extends Remote> {
+
+	public static final String FLAG = "--restore-all";
+
+	// Entities bound and registered per batch - override with -Drestore.batchSize=n
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	// Below this many entities a load task runs on its own rather than splitting further
+	private static final int SPLIT_THRESHOLD = 8;
+
+	private String kind;
+	private int batchSize;
+	private ForkJoinPool pool;
+
+	/**
+	 * Constructor
+	 *
+	 * @param kind String : used in progress messages, e.g. "meter"
+	 */
+	public BulkRestore(String kind) {
+		this.kind = kind;
+		this.batchSize = Integer.getInteger("restore.batchSize", DEFAULT_BATCH_SIZE);
+		this.pool = new ForkJoinPool(Integer.getInteger("restore.parallelism", Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Checks if the command line asked for a bulk restore
+	 *
+	 * @param args String[]
+	 * @return boolean
+	 */
+	public static boolean requested(String[] args) {
+		if( args == null )
+			return false;
+		for( String arg : args ) {
+			if( FLAG.equals(arg) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Lists the saved file names to restore, e.g. 1234.met
+	 *
+	 * @return List<String>
+	 */
+	protected abstract List<String> savedNames();
+
+	/**
+	 * Loads one saved entity
+	 *
+	 * @param fileName String
+	 * @return T : or null if it couldn't be loaded
+	 */
+	protected abstract T load(String fileName);
+
+	/**
+	 * Registers a batch of restored names with the central server
+	 *
+	 * @param names List<String>
+	 * @throws Exception
+	 */
+	protected abstract void register(List<String> names) throws Exception;
+
+	/**
+	 * Restores everything
+	 *
+	 * @return List<T> : the restored entities
+	 */
+	public List<T> run() {
+		long start = System.nanoTime();
+		List<String> fileNames = savedNames();
+		print("Restoring " + fileNames.size() + " " + kind + "s on " + pool.getParallelism() + " threads.");
+
+		// Load in parallel
+		List<Restored<T>> loaded = pool.invoke(new LoadTask(fileNames, 0, fileNames.size()));
+		long loadTime = System.nanoTime() - start;
+		print("Loaded " + loaded.size() + " of " + fileNames.size() + " " + kind + "s in " + millis(loadTime)
+				+ "ms (" + rate(loaded.size(), loadTime) + "/s).");
+
+		// Bind and register a batch at a time
+		final AtomicInteger bound = new AtomicInteger();
+		List<T> restored = new ArrayList<T>();
+		for( int from = 0; from < loaded.size(); from += batchSize ) {
+			final List<Restored<T>> batch = loaded.subList(from, Math.min(from + batchSize, loaded.size()));
+			final List<String> names = new ArrayList<String>();
+
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				protected void compute() {
+					List<RecursiveAction> binds = new ArrayList<RecursiveAction>();
+					for( final Restored<T> r : batch ) {
+						binds.add(new RecursiveAction() {
+							private static final long serialVersionUID = 1L;
+
+							protected void compute() {
+								try {
+									Naming.rebind(r.name, r.entity);
+									r.bound = true;
+									bound.incrementAndGet();
+								} catch (Exception e) {
+									System.err.println("Unable to bind " + kind + " " + r.name + ": " + e.getMessage());
+								}
+							}
+						});
+					}
+					invokeAll(binds);
+				}
+			});
+
+			for( Restored<T> r : batch ) {
+				if( r.bound ) {
+					names.add(r.name);
+					restored.add(r.entity);
+				}
+			}
+			try {
+				register(names);
+			} catch (Exception e) {
+				System.err.println("Sorry an error has occured registering " + kind + "s with the central server - please check the server's status");
+			}
+			print("Bound " + bound.get() + " of " + loaded.size() + " " + kind + "s.");
+		}
+
+		long readyTime = System.nanoTime() - start;
+		print("Ready: " + bound.get() + " " + kind + "s restored in " + millis(readyTime) + "ms ("
+				+ rate(bound.get(), readyTime) + "/s).");
+		pool.shutdown();
+		return restored;
+	}
+
+	private void print(String s) {
+		System.out.println("[Restore " + kind + "s] " + s);
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	private static long rate(int count, long nanos) {
+		return nanos == 0 ? count : (long) (count / (nanos / 1e9));
+	}
+
+	/**
+	 * Strips the extension from a saved file name
+	 *
+	 * @param fileName String
+	 * @return String
+	 */
+	protected static String nameOf(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot < 0 ? fileName : fileName.substring(0, dot);
+	}
+
+	/**
+	 * A loaded entity and the name it's bound under
+	 */
+	private static class Restored<T> {
+		String name;
+		T entity;
+		volatile boolean bound;
+
+		Restored(String name, T entity) {
+			this.name = name;
+			this.entity = entity;
+		}
+	}
+
+	/**
+	 * Loads a range of saved files, splitting the range across the pool
+	 */
+	private class LoadTask extends RecursiveTask<List<Restored<T>>> {
+		private static final long serialVersionUID = 1L;
+
+		private List<String> fileNames;
+		private int from, to;
+
+		LoadTask(List<String> fileNames, int from, int to) {
+			this.fileNames = fileNames;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected List<Restored<T>> compute() {
+			List<Restored<T>> results = new ArrayList<Restored<T>>();
+			if( to - from <= SPLIT_THRESHOLD ) {
+				for( int i = from; i < to; i++ ) {
+					T entity = load(fileNames.get(i));
+					if( entity != null )
+						results.add(new Restored<T>(nameOf(fileNames.get(i)), entity));
+					else
+						System.err.println("Skipping " + fileNames.get(i) + " - it could not be loaded.");
+				}
+				return results;
+			}
+
+			int middle = (from + to) / 2;
+			LoadTask left = new LoadTask(fileNames, from, middle);
+			left.fork();
+			results.addAll(new LoadTask(fileNames, middle, to).compute());
+			List<Restored<T>> leftResults = left.join();
+			leftResults.addAll(results);
+			return leftResults;
+		}
+	}
+}
@@ -16,6 +16,7 @@ public class CentralServer {
 	 * @param args String[]
 	 */
 	public static void main(String[] args) {
+		StubResolver.limitResponseTime();
 		DataPersistence dp = new DataPersistence();
 		
 		//If data exists
@@ -34,10 +35,17 @@ public class CentralServer {
 					try {
 						Naming.rebind("meterList", dp.getMeterList());
 						print("Meter list registered.");
-						Naming.rebind("companyList", dp.getPowerCompanyList());
+						RemoteList<String> companyList = dp.getPowerCompanyList();
+						Naming.rebind("companyList", companyList);
 						print("Company list registered.");
 						Naming.rebind("brokerList", dp.getBrokerList());
 						print("Broker list registered.");
+						TariffCatalog catalog = dp.getTariffCatalog();
+						if( catalog == null )
+							catalog = new TariffCatalog();
+						Naming.rebind("tariffCatalog", catalog);
+						companyList.subscribe(catalog.companyListener(), 0);
+						print("Tariff catalog registered.");
 					} catch (Exception e) {
 						System.err.println("Error - Java RMI registry is not currently running. Please turn it on and try again.");
 					} 
@@ -62,10 +70,15 @@ public class CentralServer {
 		try {
 			Naming.rebind("meterList", new RemoteList<String>(0));
 			print("Meter list registered.");
-			Naming.rebind("companyList", new RemoteList<String>(1));
+			RemoteList<String> companyList = new RemoteList<String>(1);
+			Naming.rebind("companyList", companyList);
 			print("Company list registered.");
 			Naming.rebind("brokerList", new RemoteList<String>(2));
 			print("Broker list registered.");
+			TariffCatalog catalog = new TariffCatalog();
+			Naming.rebind("tariffCatalog", catalog);
+			companyList.subscribe(catalog.companyListener(), 0);
+			print("Tariff catalog registered.");
 		} catch (Exception e) {
 			System.err.println("Error - Java RMI registry is not currently running. Please turn it on and try again.");
 		} 
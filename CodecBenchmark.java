@@ -0,0 +1,153 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares EntityCodec against default Java serialization - bytes written and encode/decode time.
+ *
+ * Usage: java CodecBenchmark [readings] [customers] [iterations]
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int readingCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int customerCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		Random r = new Random(42);
+		List<UnicastRemoteObject> exported = new ArrayList<UnicastRemoteObject>();
+
+		// A long history - meters keep theirs in a ReadingStore, brokers hold summaries of them
+		ArrayList<Integer> readings = new ArrayList<Integer>();
+		int total = 0;
+		for( int i = 0; i < readingCount; i++ ) {
+			readings.add(total);
+			total += r.nextInt(500);
+		}
+		Meter meter = new Meter("1000000", null, "Benchmark_Power", null, null, null);
+		exported.add(meter);
+
+		// A power company and a broker with many customers
+		Map<String, MeterInterface> customers = new HashMap<String, MeterInterface>();
+		Map<String, Integer> latest = new HashMap<String, Integer>();
+		Map<String, UsageSummary> summaries = new HashMap<String, UsageSummary>();
+		for( int i = 0; i < customerCount; i++ ) {
+			String id = Integer.toString(Math.abs(r.nextInt()));
+			Meter m = new Meter(id, null, null, null, null, null);
+			exported.add(m);
+			customers.put(id, m);
+			latest.put(id, r.nextInt(100000));
+			summaries.put(id, UsageSummary.of(readings.subList(0, Math.min(readingCount / 10, readings.size()))));
+		}
+		PowerCompany pc = new PowerCompany("Benchmark_Power", new Tariff(20, 10, 0, 300), customers, latest);
+		Broker broker = new Broker("Benchmark_Broker", customers, summaries);
+		exported.add(pc);
+		exported.add(broker);
+
+		System.out.println("readings=" + readingCount + " customers=" + customerCount + " iterations=" + iterations);
+		System.out.println(String.format("%-14s %-6s %12s %12s %12s", "entity", "format", "bytes", "encode(us)", "decode(us)"));
+
+		// Meter
+		report("Meter", "java", serialize(meter), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return serialize(o); }
+			public Object decode(byte[] b) throws Exception { return deserialize(b); }
+		}, meter, exported);
+		report("Meter", "codec", EntityCodec.encodeMeter(meter), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return EntityCodec.encodeMeter((Meter) o); }
+			public Object decode(byte[] b) throws Exception { return EntityCodec.decodeMeter(b); }
+		}, meter, exported);
+
+		// PowerCompany
+		report("PowerCompany", "java", serialize(pc), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return serialize(o); }
+			public Object decode(byte[] b) throws Exception { return deserialize(b); }
+		}, pc, exported);
+		report("PowerCompany", "codec", EntityCodec.encodePowerCompany(pc), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return EntityCodec.encodePowerCompany((PowerCompany) o); }
+			public Object decode(byte[] b) throws Exception { return EntityCodec.decodePowerCompany(b); }
+		}, pc, exported);
+
+		// Broker
+		report("Broker", "java", serialize(broker), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return serialize(o); }
+			public Object decode(byte[] b) throws Exception { return deserialize(b); }
+		}, broker, exported);
+		report("Broker", "codec", EntityCodec.encodeBroker(broker), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return EntityCodec.encodeBroker((Broker) o); }
+			public Object decode(byte[] b) throws Exception { return EntityCodec.decodeBroker(b); }
+		}, broker, exported);
+
+		// Tariff
+		Tariff t = pc.getTariffDetails();
+		report("Tariff", "java", serialize(t), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return serialize(o); }
+			public Object decode(byte[] b) throws Exception { return deserialize(b); }
+		}, t, exported);
+		report("Tariff", "codec", EntityCodec.encodeTariff(t), iterations, new Codec() {
+			public byte[] encode(Object o) throws Exception { return EntityCodec.encodeTariff((Tariff) o); }
+			public Object decode(byte[] b) throws Exception { return EntityCodec.decodeTariff(b); }
+		}, t, exported);
+
+		for( UnicastRemoteObject o : exported )
+			UnicastRemoteObject.unexportObject(o, true);
+		System.exit(0);
+	}
+
+	/**
+	 * Times encoding and decoding and prints a row of the results table
+	 */
+	private static void report(String entity, String format, byte[] sample, int iterations, Codec codec, Object o,
+			List<UnicastRemoteObject> exported) throws Exception {
+		// Warm up
+		for( int i = 0; i < 3; i++ )
+			track(codec.decode(codec.encode(o)), exported);
+
+		long start = System.nanoTime();
+		for( int i = 0; i < iterations; i++ )
+			codec.encode(o);
+		long encode = (System.nanoTime() - start) / iterations / 1000;
+
+		start = System.nanoTime();
+		for( int i = 0; i < iterations; i++ )
+			track(codec.decode(sample), exported);
+		long decode = (System.nanoTime() - start) / iterations / 1000;
+
+		System.out.println(String.format("%-14s %-6s %12d %12d %12d", entity, format, sample.length, encode, decode));
+	}
+
+	/**
+	 * Decoded entities are exported remote objects - keep hold of them so they can be unexported
+	 */
+	private static void track(Object o, List<UnicastRemoteObject> exported) throws RemoteException {
+		if( o instanceof UnicastRemoteObject )
+			exported.add((UnicastRemoteObject) o);
+	}
+
+	private static byte[] serialize(Object o) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(o);
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] data) throws Exception {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+		Object o = ois.readObject();
+		ois.close();
+		return o;
+	}
+
+	private interface Codec {
+		byte[] encode(Object o) throws Exception;
+		Object decode(byte[] b) throws Exception;
+	}
+}
@@ -1,10 +1,13 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class DataPersistence {
@@ -17,6 +20,17 @@ public class DataPersistence {
 	public static final String METER_LIST_FILE = SERVER_FOLDER + "/meters.list";
 	public static final String POWER_COMPANY_LIST_FILE = SERVER_FOLDER + "/power_companies.list";
 	public static final String BROKER_LIST_FILE = SERVER_FOLDER + "/brokers.list";
+	public static final String TARIFF_CATALOG_FILE = SERVER_FOLDER + "/tariffs.cat";
+	
+	// Reading logs are folded into a full snapshot after this many records
+	public static final int SNAPSHOT_INTERVAL = 100;
+	
+	// RemoteList journals are compacted into a snapshot after this many changes
+	public static final int LIST_COMPACT_INTERVAL = 1000;
+	
+	// Loading gives up on a corrupt file after this many attempts rather than spinning forever
+	public static final int MAX_LOAD_ATTEMPTS = 3;
+	public static final long LOAD_RETRY_DELAY = 200;
 		
 	// Objects for folders
 	private File powerCompanies;
@@ -60,24 +74,70 @@ public class DataPersistence {
 		return brokers.exists();
 	}
 	
+	/**
+	 * Checks if a meter has been saved, without scanning the meter folder
+	 * 
+	 * @param id String
+	 * @return boolean
+	 */
+	public boolean meterExists( String id ) {
+		try {
+			return meterManifest().contains( id );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Checks if a power company has been saved, without scanning its folder
+	 * 
+	 * @param name String
+	 * @return boolean
+	 */
+	public boolean powerCompanyExists( String name ) {
+		try {
+			return powerCompanyManifest().contains( name );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Checks if a broker has been saved, without scanning its folder
+	 * 
+	 * @param name String
+	 * @return boolean
+	 */
+	public boolean brokerExists( String name ) {
+		try {
+			return brokerManifest().contains( name );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
 	/**
 	 * Saves a PowerCompany object
 	 * 
 	 * @param pc PowerCompany
+	 * @return boolean : false if it couldn't be saved - the error has been printed
 	 */
-	public void savePowerCompany(PowerCompany pc) {
+	public boolean savePowerCompany(PowerCompany pc) {
 		try {
-			File f = new File( POWER_COMPANY_FOLDER + "/" + pc.getName() + ".pc" );
-			FileOutputStream fos = new FileOutputStream( f );
-			ObjectOutputStream oos = new ObjectOutputStream( fos );
+			ReadingLog log = powerCompanyLog( pc.getName() );
 			
-			oos.writeObject( pc );
-			
-			oos.flush();
-			oos.close();
-			fos.close();
+			// Count the logged readings first - they're all in the snapshot we're about to take
+			int logged = log.size();
+			File f = entityFile( POWER_COMPANY_FOLDER, pc.getName(), ".pc" );
+			SnapshotFile.write( f, EntityCodec.encodePowerCompany( pc ), 
+					new SnapshotCommitted( powerCompanyManifest(), pc.getName(), f, log, logged ) );
+			return true;
 		} catch ( IOException e ) {
 			e.printStackTrace();
+			return false;
 		}
 	}
 
@@ -85,20 +145,17 @@ public class DataPersistence {
 	 * Saves a Broker object
 	 * 
 	 * @param b Broker
+	 * @return boolean : false if it couldn't be saved - the error has been printed
 	 */
-	public void saveBroker( Broker b ) {
+	public boolean saveBroker( Broker b ) {
 		try {
-			File f = new File( BROKER_FOLDER + "/" + b.getName() + ".brk" );
-			FileOutputStream fos = new FileOutputStream( f );
-			ObjectOutputStream oos = new ObjectOutputStream( fos );
-			
-			oos.writeObject( b );
-			
-			oos.flush();
-			oos.close();
-			fos.close();
+			File f = entityFile( BROKER_FOLDER, b.getName(), ".brk" );
+			SnapshotFile.write( f, EntityCodec.encodeBroker( b ), 
+					new SnapshotCommitted( brokerManifest(), b.getName(), f, null, 0 ) );
+			return true;
 		} catch ( Exception e ) {
 			e.printStackTrace();
+			return false;
 		}
 	}
 	
@@ -106,21 +163,315 @@ public class DataPersistence {
 	 * Saves a Meter object
 	 * 
 	 * @param m Meter
+	 * @return boolean : false if it couldn't be saved - the error has been printed
 	 */
-	public void saveMeter( Meter m ) {
+	public boolean saveMeter( Meter m ) {
 		try {
-			File f = new File( METER_FOLDER + "/" + m.getId() + ".met" );
-			FileOutputStream fos = new FileOutputStream(f);
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
-			
-			oos.writeObject(m);
+			ReadingLog log = meterLog( m.getId() );
 			
-			oos.flush();
-			oos.close();
-			fos.close();
+			// Count the logged readings first - they're all in the snapshot we're about to take
+			int logged = log.size();
+			File f = entityFile( METER_FOLDER, m.getId(), ".met" );
+			SnapshotFile.write( f, EntityCodec.encodeMeter( m ), 
+					new SnapshotCommitted( meterManifest(), m.getId(), f, log, logged ) );
+			return true;
 		} catch ( Exception e ) {
 			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Marks a PowerCompany as dirty so the write-behind scheduler saves it
+	 * 
+	 * @param pc PowerCompany
+	 */
+	public void scheduleSavePowerCompany( final PowerCompany pc ) {
+		try {
+			PersistenceScheduler.getInstance().markDirty( "pc:" + pc.getName(), new Runnable() {
+				public void run() {
+					saved( savePowerCompany( pc ), "power company" );
+				}
+			});
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Marks a Broker as dirty so the write-behind scheduler saves it
+	 * 
+	 * @param b Broker
+	 */
+	public void scheduleSaveBroker( final Broker b ) {
+		try {
+			PersistenceScheduler.getInstance().markDirty( "brk:" + b.getName(), new Runnable() {
+				public void run() {
+					saved( saveBroker( b ), "broker" );
+				}
+			});
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Marks a Meter as dirty so the write-behind scheduler saves it
+	 * 
+	 * @param m Meter
+	 */
+	public void scheduleSaveMeter( final Meter m ) {
+		try {
+			PersistenceScheduler.getInstance().markDirty( "met:" + m.getId(), new Runnable() {
+				public void run() {
+					saved( saveMeter( m ), "meter" );
+				}
+			});
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Marks a RemoteList as dirty so the write-behind scheduler saves it
+	 * 
+	 * @param remoteList RemoteList
+	 * @param type int
+	 */
+	@SuppressWarnings("rawtypes")
+	private void scheduleSaveRemoteList( final RemoteList remoteList, final int type ) {
+		PersistenceScheduler.getInstance().markDirty( "list:" + type, new Runnable() {
+			public void run() {
+				saved( saveRemoteList( remoteList, type ), "list " + type );
+			}
+		});
+	}
+	
+	/**
+	 * Fails a scheduled save that didn't work, so the scheduler keeps the entity dirty and tries
+	 * again on the next flush
+	 * 
+	 * @param saved boolean
+	 * @param what String : the entity, for the message
+	 */
+	private static void saved( boolean saved, String what ) {
+		if( !saved )
+			throw new IllegalStateException( "Unable to save " + what + " - will retry" );
+	}
+	
+	/**
+	 * Writes any entities still waiting in the write-behind scheduler
+	 */
+	public void flush() {
+		PersistenceScheduler.getInstance().flush();
+	}
+	
+	/**
+	 * Appends a single customer reading to the PowerCompany's reading log, taking a full 
+	 * snapshot only once SNAPSHOT_INTERVAL readings have built up
+	 * 
+	 * @param pc PowerCompany
+	 * @param id String : id of the meter
+	 * @param reading int
+	 */
+	public void logPowerCompanyReading( PowerCompany pc, String id, int reading ) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( bytes );
+			out.writeUTF( id );
+			out.writeInt( reading );
+			out.close();
+			
+			if( powerCompanyLog( pc.getName() ).append( bytes.toByteArray() ) >= SNAPSHOT_INTERVAL )
+				scheduleSavePowerCompany( pc );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Appends a change to a RemoteList's journal, compacting the journal into a snapshot 
+	 * once LIST_COMPACT_INTERVAL changes have built up
+	 * 
+	 * @param remoteList RemoteList
+	 * @param type int
+	 * @param added boolean : false for a removal
+	 * @param obj Object : one object, or a Collection of objects added together
+	 */
+	@SuppressWarnings("rawtypes")
+	public void logRemoteListChange( RemoteList remoteList, int type, boolean added, Object obj ) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write( added ? 1 : 0 );
+			ObjectOutputStream out = new ObjectOutputStream( bytes );
+			out.writeObject( obj );
+			out.close();
+			
+			if( listJournal( type ).append( bytes.toByteArray() ) >= LIST_COMPACT_INTERVAL )
+				scheduleSaveRemoteList( remoteList, type );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Gets the memory-mapped reading history of a meter
+	 * 
+	 * @param id String
+	 * @return ReadingStore
+	 */
+	public ReadingStore getReadingStore( String id ) {
+		return ReadingStore.forFile( entityFile( METER_FOLDER, id, ".rds" ) );
+	}
+	
+	/**
+	 * Gets the reading history of a meter with its roll-up tiers
+	 * 
+	 * @param id String
+	 * @return ReadingHistory
+	 */
+	public ReadingHistory getReadingHistory( String id ) {
+		return new ReadingHistory( getReadingStore( id ),
+				ReadingStore.forFile( entityFile( METER_FOLDER, id, ".hourly.rds" ) ),
+				ReadingStore.forFile( entityFile( METER_FOLDER, id, ".daily.rds" ) ) );
+	}
+	
+	/**
+	 * Gets the reading log for a meter - only written by older versions, readings now
+	 * go straight into the meter's ReadingStore
+	 * 
+	 * @param id String
+	 * @return ReadingLog
+	 */
+	private ReadingLog meterLog( String id ) {
+		return ReadingLog.forFile( entityFile( METER_FOLDER, id, ".log" ) );
+	}
+	
+	/**
+	 * Gets the reading log for a power company
+	 * 
+	 * @param name String
+	 * @return ReadingLog
+	 */
+	private ReadingLog powerCompanyLog( String name ) {
+		return ReadingLog.forFile( entityFile( POWER_COMPANY_FOLDER, name, ".log" ) );
+	}
+	
+	/**
+	 * Gets a file belonging to an entity. Entities are spread over hashed shard directories so
+	 * no single directory grows too large.
+	 * 
+	 * @param folder String
+	 * @param id String
+	 * @param extension String
+	 * @return File
+	 */
+	private static File entityFile( String folder, String id, String extension ) {
+		File shard = new File( folder + "/" + Manifest.shardOf( id ) );
+		if( !shard.exists() )
+			shard.mkdirs();
+		return new File( shard, id + extension );
+	}
+	
+	/**
+	 * Finds the snapshot of an entity through its folder's manifest
+	 * 
+	 * @param manifest Manifest
+	 * @param folder String
+	 * @param fileName String : e.g. 1234.met
+	 * @return File
+	 * @throws IOException
+	 */
+	private static File snapshotFile( Manifest manifest, String folder, String fileName ) throws IOException {
+		String id = stripExtension( fileName );
+		File f = manifest.fileOf( id );
+		return f != null ? f : entityFile( folder, id, fileName.substring( id.length() ) );
+	}
+	
+	/**
+	 * Lists the saved entities in a manifest as file names, e.g. 1234.met
+	 * 
+	 * @param manifest Manifest
+	 * @param extension String
+	 * @return List<String>
+	 */
+	private static List<String> savedNames( Manifest manifest, String extension ) {
+		List<String> list = new ArrayList<String>();
+		try {
+			for( String id : manifest.ids() )
+				list.add( id + extension );
+		} catch ( IOException e ) {
+			e.printStackTrace();
 		}
+		return list;
+	}
+	
+	/**
+	 * Gets the manifests indexing each entity folder
+	 * 
+	 * @return Manifest
+	 */
+	public Manifest meterManifest() {
+		return Manifest.forFolder( meters, ".met" );
+	}
+	
+	public Manifest powerCompanyManifest() {
+		return Manifest.forFolder( powerCompanies, ".pc" );
+	}
+	
+	public Manifest brokerManifest() {
+		return Manifest.forFolder( brokers, ".brk" );
+	}
+	
+	/**
+	 * Reports a failed load attempt, pausing briefly before the next one
+	 * 
+	 * @param name String
+	 * @param e Exception
+	 */
+	private static void loadFailed( String name, Exception e ) {
+		System.err.println("Unable to load " + name + ": " + e.getMessage());
+		try {
+			Thread.sleep( LOAD_RETRY_DELAY );
+		} catch ( InterruptedException e1 ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Gets the save file for a RemoteList
+	 * 
+	 * @param type int
+	 * @return File
+	 */
+	private File listFile( int type ) {
+		if( type == 0 )
+			return meterList;
+		else if (type == 1)
+			return powerCompanyList;
+		else
+			return brokerList;
+	}
+	
+	/**
+	 * Gets the journal of changes made to a RemoteList since its last snapshot
+	 * 
+	 * @param type int
+	 * @return ReadingLog
+	 */
+	private ReadingLog listJournal( int type ) {
+		return ReadingLog.forFile( new File( listFile( type ).getPath() + ".journal" ) );
+	}
+	
+	/**
+	 * Strips the file extension from a saved file name
+	 * 
+	 * @param fileName String
+	 * @return String
+	 */
+	private static String stripExtension( String fileName ) {
+		int dot = fileName.lastIndexOf('.');
+		return dot < 0 ? fileName : fileName.substring(0, dot);
 	}
 
 	/**
@@ -150,39 +501,35 @@ public class DataPersistence {
 	 * @return List<String>
 	 */
 	public List<String> getMeterNames() {
-		List<String> list = new ArrayList<String>();
-		
-		for( String s : meters.list() ) {
-			if( s.toLowerCase().endsWith(".met") ) {
-				list.add(s);
-			}
-		}
-		return list;
+		return savedNames( meterManifest(), ".met" );
 	}
 
 	/**
-	 * Deserializes a specified Meter object
+	 * Loads a specified Meter object - reads both codec files and older serialized ones
 	 * 
 	 * @param string String
 	 * @return Meter
 	 */
 	public Meter getMeter(String string) {
 		boolean opened = false;
+		int attempts = 0;
 		
 		Meter m = null;
-		while( !opened ) {
-			File f = new File( METER_FOLDER + "/" + string );
+		while( !opened && attempts++ < MAX_LOAD_ATTEMPTS ) {
 			try {
-				FileInputStream fis = new FileInputStream( f );
-				ObjectInputStream ois = new ObjectInputStream( fis );
-				m = (Meter) ois.readObject();
+				File f = snapshotFile( meterManifest(), METER_FOLDER, string );
+				m = EntityCodec.decodeMeter( SnapshotFile.read( f ) );
 				
-				fis.close();
-				ois.close();
+				// Replay any readings logged by an older version since the snapshot
+				for( byte[] record : meterLog( stripExtension(string) ).readAll() ) {
+					DataInputStream in = new DataInputStream( new ByteArrayInputStream( record ) );
+					m.replayReading( in.readInt(), in.readInt() );
+				}
 							
 				opened = true;
 			} catch (Exception e) {
-				e.printStackTrace();
+				m = null;
+				loadFailed( string, e );
 			}
 		}
 		return m;
@@ -194,39 +541,35 @@ public class DataPersistence {
 	 * @return List<String>
 	 */
 	public List<String> getPowerCompanyNames() {
-		List<String> list = new ArrayList<String>();
-		
-		for( String s : powerCompanies.list() ) {
-			if( s.toLowerCase().endsWith(".pc") ) {
-				list.add(s);
-			}
-		}
-		return list;
+		return savedNames( powerCompanyManifest(), ".pc" );
 	}
 
 	/**
-	 * Deserializes a specified PowerCompany object
+	 * Loads a specified PowerCompany object - reads both codec files and older serialized ones
 	 * 
 	 * @param string String
 	 * @return PowerCompany
 	 */
 	public PowerCompany getPowerCompany(String name) {
 		boolean opened = false;
+		int attempts = 0;
 		
 		PowerCompany pc = null;
-		while( !opened ) {
-			File f = new File( POWER_COMPANY_FOLDER + "/" + name );
+		while( !opened && attempts++ < MAX_LOAD_ATTEMPTS ) {
 			try {
-				FileInputStream fis = new FileInputStream( f );
-				ObjectInputStream ois = new ObjectInputStream( fis );
-				pc = (PowerCompany) ois.readObject();
+				File f = snapshotFile( powerCompanyManifest(), POWER_COMPANY_FOLDER, name );
+				pc = EntityCodec.decodePowerCompany( SnapshotFile.read( f ) );
 				
-				fis.close();
-				ois.close();
+				// Replay any readings logged since the snapshot
+				for( byte[] record : powerCompanyLog( stripExtension(name) ).readAll() ) {
+					DataInputStream in = new DataInputStream( new ByteArrayInputStream( record ) );
+					pc.replayReading( in.readUTF(), in.readInt() );
+				}
 							
 				opened = true;
 			} catch (Exception e) {
-				e.printStackTrace();
+				pc = null;
+				loadFailed( name, e );
 			}
 		}
 		return pc;
@@ -238,39 +581,28 @@ public class DataPersistence {
 	 * @return List<String>
 	 */
 	public List<String> getBrokerNames() {
-		List<String> list = new ArrayList<String>();
-		
-		for( String s : brokers.list() ) {
-			if( s.toLowerCase().endsWith(".brk") ) {
-				list.add(s);
-			}
-		}
-		return list;
+		return savedNames( brokerManifest(), ".brk" );
 	}
 	
 	/**
-	 * Deserializes a specified Broker object
+	 * Loads a specified Broker object - reads both codec files and older serialized ones
 	 * 
 	 * @param string String
 	 * @return Broker
 	 */
 	public Broker getBroker(String name) {
 		boolean opened = false;
+		int attempts = 0;
 		
 		Broker b = null;
-		while( !opened ) {
-			File f = new File( BROKER_FOLDER + "/" + name );
+		while( !opened && attempts++ < MAX_LOAD_ATTEMPTS ) {
 			try {
-				FileInputStream fis = new FileInputStream( f );
-				ObjectInputStream ois = new ObjectInputStream( fis );
-				b = (Broker) ois.readObject();
-				
-				fis.close();
-				ois.close();
+				File f = snapshotFile( brokerManifest(), BROKER_FOLDER, name );
+				b = EntityCodec.decodeBroker( SnapshotFile.read( f ) );
 							
 				opened = true;
 			} catch (Exception e) {
-				e.printStackTrace();
+				loadFailed( name, e );
 			}
 		}
 		return b;
@@ -285,25 +617,32 @@ public class DataPersistence {
 	public RemoteList<String> getRemoteList(int type) {
 		boolean opened = false;
 		
+		int attempts = 0;
 		RemoteList<String> list = null;
-		while( !opened ) {
+		File f = listFile( type );
+		while( !opened && attempts++ < MAX_LOAD_ATTEMPTS ) {
 			try {
-				FileInputStream fis;
-				if( type == 0 )
-					fis = new FileInputStream( meterList );
-				else if (type == 1)
-					fis = new FileInputStream( powerCompanyList );
-				else
-					fis = new FileInputStream( brokerList );
-				ObjectInputStream ois = new ObjectInputStream( fis );
+				ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( SnapshotFile.read( f ) ) );
 				list = (RemoteList<String>) ois.readObject();
 				
-				fis.close();
 				ois.close();
+				
+				// Replay changes made since the snapshot
+				for( byte[] record : listJournal( type ).readAll() ) {
+					boolean added = record[0] == 1;
+					ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( record, 1, record.length - 1 ) );
+					Object entry = in.readObject();
+					if( entry instanceof Collection ) {
+						list.replayObjects( (Collection<String>) entry, added );
+					} else {
+						list.replayObject( (String) entry, added );
+					}
+				}
 							
 				opened = true;
 			} catch (Exception e) {
-				e.printStackTrace();
+				list = null;
+				loadFailed( f.getName(), e );
 			}
 		}
 		return list;			
@@ -321,30 +660,125 @@ public class DataPersistence {
 	}
 	
 	/**
-	 * Saves a RemoteList object
+	 * Gets the saved tariff catalog
+	 * 
+	 * @return TariffCatalog : or null if there isn't one
+	 */
+	public TariffCatalog getTariffCatalog() {
+		File f = new File( TARIFF_CATALOG_FILE );
+		if( !f.exists() && !SnapshotFile.backupOf( f ).exists() )
+			return null;
+		
+		int attempts = 0;
+		while( attempts++ < MAX_LOAD_ATTEMPTS ) {
+			try {
+				ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( SnapshotFile.read( f ) ) );
+				TariffCatalog catalog = (TariffCatalog) ois.readObject();
+				ois.close();
+				return catalog;
+			} catch (Exception e) {
+				loadFailed( f.getName(), e );
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Saves the tariff catalog
+	 * 
+	 * @param catalog TariffCatalog
+	 * @return boolean : false if it couldn't be saved - the error has been printed
+	 */
+	public boolean saveTariffCatalog( TariffCatalog catalog ) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			synchronized( catalog ) {
+				ObjectOutputStream oos = new ObjectOutputStream( bytes );
+				oos.writeObject( catalog );
+				oos.close();
+			}
+			SnapshotFile.write( new File( TARIFF_CATALOG_FILE ), bytes.toByteArray(), null );
+			return true;
+		} catch ( Exception e ) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Marks the tariff catalog as dirty so the write-behind scheduler saves it
+	 * 
+	 * @param catalog TariffCatalog
+	 */
+	public void scheduleSaveTariffCatalog( final TariffCatalog catalog ) {
+		PersistenceScheduler.getInstance().markDirty( "catalog", new Runnable() {
+			public void run() {
+				saved( saveTariffCatalog( catalog ), "tariff catalog" );
+			}
+		});
+	}
+	
+	/**
+	 * Saves a RemoteList object, folding in (and then trimming) its journal
 	 * 
 	 * @param remoteList RemoteList
+	 * @return boolean : false if it couldn't be saved - the error has been printed
 	 */
 	@SuppressWarnings("rawtypes")
-	public void saveRemoteList( RemoteList remoteList, int type ) {
+	public boolean saveRemoteList( RemoteList remoteList, int type ) {
 		try {
-			FileOutputStream fos;
-			if( type == 0 )
-				fos = new FileOutputStream( meterList );
-			else if (type == 1)
-				fos = new FileOutputStream( powerCompanyList );
-			else
-				fos = new FileOutputStream( brokerList );
-			ObjectOutputStream oos = new ObjectOutputStream(fos);
+			ReadingLog journal = listJournal( type );
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int logged;
 			
-			oos.writeObject(remoteList);
+			// Entries are journalled under the list's lock, so this count matches the snapshot
+			synchronized( remoteList ) {
+				logged = journal.size();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				
+				oos.writeObject(remoteList);
+				
+				oos.flush();
+				oos.close();
+			}
 			
-			oos.flush();
-			oos.close();
-			fos.close();
+			SnapshotFile.write( listFile( type ), bytes.toByteArray(), 
+					new SnapshotCommitted( null, null, null, journal, logged ) );
+			return true;
 		} catch ( Exception e ) {
 			e.printStackTrace();
+			return false;
 		}
 	}
 	
+	/**
+	 * Runs once a snapshot is durable - records it in the manifest (if it has one) and trims 
+	 * the log records it contains
+	 */
+	private static class SnapshotCommitted implements Runnable {
+		private Manifest manifest;
+		private String id;
+		private File file;
+		private ReadingLog log;
+		private int count;
+		
+		public SnapshotCommitted( Manifest manifest, String id, File file, ReadingLog log, int count ) {
+			this.manifest = manifest;
+			this.id = id;
+			this.file = file;
+			this.log = log;
+			this.count = count;
+		}
+		
+		public void run() {
+			try {
+				if( manifest != null )
+					manifest.put( id, file );
+				if( log != null )
+					log.discardFirst( count );
+			} catch ( IOException e ) {
+				e.printStackTrace();
+			}
+		}
+	}
 }
@@ -0,0 +1,188 @@
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Client-side copy of one of the central server's RemoteLists.
+ *
+ * The first read fetches the whole list and subscribes to its changes, which the central server
+ * then pushes in batches (see DirectoryNotifier). Reads are answered locally while the
+ * subscription is alive. If the pushes stop - e.g. the central server restarted - the cache falls
+ * back to fetching only the changes since its version (RemoteListInterface.changesSince) and
+ * subscribes again.
+ */
+public class DirectoryCache<T> {
+
+	// No push (not even a heartbeat) for this long means the subscription has been lost
+	public static final long SUBSCRIPTION_TIMEOUT = DirectoryNotifier.HEARTBEAT_INTERVAL * 3;
+
+	// One cache per list so everything in the JVM shares it
+	private static final ConcurrentMap<String, DirectoryCache<?>> caches = new ConcurrentHashMap<String, DirectoryCache<?>>();
+
+	private String name;
+	private LinkedHashSet<T> entries = new LinkedHashSet<T>();
+	private long epoch;
+	private long version;
+
+	// Subscription state
+	private Listener listener;
+	private boolean subscribed;
+	private long lastHeard;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name String : name the list is bound under, e.g. companyList
+	 */
+	private DirectoryCache(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the shared cache for a list
+	 *
+	 * @param name String
+	 * @return DirectoryCache<T>
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> DirectoryCache<T> forName(String name) {
+		DirectoryCache<?> cache = caches.get(name);
+		if( cache == null ) {
+			DirectoryCache<T> created = new DirectoryCache<T>(name);
+			cache = caches.putIfAbsent(name, created);
+			if( cache == null )
+				cache = created;
+		}
+		return (DirectoryCache<T>) cache;
+	}
+
+	/**
+	 * Gets an up to date copy of the list
+	 *
+	 * @return ArrayList<T>
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public synchronized ArrayList<T> list() throws MalformedURLException, RemoteException, NotBoundException {
+		if( !subscribed || System.currentTimeMillis() - lastHeard > SUBSCRIPTION_TIMEOUT ) {
+			refresh();
+			subscribe();
+		}
+		return new ArrayList<T>(entries);
+	}
+
+	/**
+	 * Gets the list's version, checking the central server is alive
+	 *
+	 * @return long
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public synchronized long ping() throws MalformedURLException, RemoteException, NotBoundException {
+		try {
+			return remote().version();
+		} catch (RemoteException e) {
+			lost();
+			throw e;
+		}
+	}
+
+	/**
+	 * Fetches the changes since the cached version
+	 */
+	private void refresh() throws MalformedURLException, RemoteException, NotBoundException {
+		try {
+			ListDelta<T> delta = remote().changesSince(version);
+
+			// A new list (e.g. the central server was recreated) - our version means nothing to it
+			if( delta.getEpoch() != epoch && delta.getFromVersion() != 0 )
+				delta = remote().changesSince(0);
+
+			apply(delta);
+		} catch (RemoteException e) {
+			lost();
+			throw e;
+		}
+	}
+
+	/**
+	 * Subscribes to pushed changes from the version we have
+	 */
+	private void subscribe() throws MalformedURLException, RemoteException, NotBoundException {
+		try {
+			if( listener == null )
+				listener = new Listener();
+			remote().subscribe(listener, version);
+			subscribed = true;
+			lastHeard = System.currentTimeMillis();
+		} catch (RemoteException e) {
+			// Still usable by fetching changes - try again next time
+			subscribed = false;
+		}
+	}
+
+	/**
+	 * Applies a delta fetched or pushed from the central server
+	 *
+	 * @param delta ListDelta<T>
+	 * @return boolean : false if the delta doesn't follow on from our version
+	 */
+	private boolean apply(ListDelta<T> delta) {
+		if( delta.getFromVersion() == 0 ) {
+			// The whole list
+			entries.clear();
+			epoch = delta.getEpoch();
+		} else if( delta.getEpoch() != epoch || delta.getFromVersion() != version ) {
+			return false;
+		}
+
+		entries.removeAll(delta.getRemoved());
+		entries.addAll(delta.getAdded());
+		version = delta.getVersion();
+		return true;
+	}
+
+	/**
+	 * Forgets the connection so the next read looks the list up again
+	 */
+	private void lost() {
+		StubResolver.invalidate(name);
+		subscribed = false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RemoteListInterface<T> remote() throws MalformedURLException, RemoteException, NotBoundException {
+		return (RemoteListInterface<T>) StubResolver.lookup(name);
+	}
+
+	/**
+	 * Receives changes pushed by the central server
+	 */
+	private class Listener extends UnicastRemoteObject implements DirectoryListener<T> {
+		private static final long serialVersionUID = 1L;
+
+		Listener() throws RemoteException {
+			super();
+		}
+
+		/**
+		 * @Override
+		 */
+		public void directoryChanged(ListDelta<T> delta) throws RemoteException {
+			synchronized( DirectoryCache.this ) {
+				lastHeard = System.currentTimeMillis();
+
+				// Out of step - fetch the changes on the next read instead
+				if( !apply(delta) )
+					subscribed = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,10 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote interface for anything subscribed to changes in a RemoteList
+ */
+public interface DirectoryListener<T> extends Remote {
+	
+	public void directoryChanged(ListDelta<T> delta) throws RemoteException;
+}
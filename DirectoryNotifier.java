@@ -0,0 +1,199 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a RemoteList's changes to its subscribers.
+ *
+ * Every batch interval each subscriber is sent one delta covering everything that changed since
+ * the last version it received, so bursts of changes are coalesced into a single call. A
+ * subscriber whose previous delivery is still in progress is skipped for that round and catches
+ * up in the next one. Subscribers that fail MAX_FAILURES deliveries in a row are dropped, as are
+ * subscribers whose delivery call has been running longer than the delivery timeout - time spent
+ * queued behind other deliveries doesn't count, and the call itself is ended by the RMI response
+ * timeout (see StubResolver.limitResponseTime). Idle subscribers get
+ * an empty delta every HEARTBEAT_INTERVAL so they know the subscription is alive.
+ */
+public class DirectoryNotifier<T> {
+
+	// How often changes are pushed - override with -Ddirectory.batchInterval=ms
+	public static final long DEFAULT_BATCH_INTERVAL = 250;
+
+	// Idle subscribers are sent an empty delta this often
+	public static final long HEARTBEAT_INTERVAL = 30000;
+
+	// Consecutive failed deliveries before a subscriber is dropped
+	public static final int MAX_FAILURES = 3;
+
+	// A delivery running longer than this drops the subscriber - override with -Ddirectory.deliveryTimeout=ms
+	public static final long DEFAULT_DELIVERY_TIMEOUT = 10000;
+
+	// Threads making delivery calls - a slow subscriber only holds up one of them
+	private static final int DELIVERY_THREADS = 4;
+
+	private RemoteList<T> list;
+	private Map<DirectoryListener<T>, Subscriber> subscribers = new ConcurrentHashMap<DirectoryListener<T>, Subscriber>();
+	private ScheduledExecutorService ticker;
+	private ExecutorService delivery;
+
+	/**
+	 * Constructor
+	 *
+	 * @param list RemoteList<T>
+	 */
+	public DirectoryNotifier(RemoteList<T> list) {
+		this.list = list;
+	}
+
+	/**
+	 * Subscribes a listener
+	 *
+	 * @param listener DirectoryListener<T>
+	 * @param version long : the version the listener already has
+	 */
+	public synchronized void subscribe(DirectoryListener<T> listener, long version) {
+		subscribers.put(listener, new Subscriber(listener, version));
+		start();
+	}
+
+	/**
+	 * Unsubscribes a listener
+	 *
+	 * @param listener DirectoryListener<T>
+	 * @return boolean
+	 */
+	public boolean unsubscribe(DirectoryListener<T> listener) {
+		return subscribers.remove(listener) != null;
+	}
+
+	/**
+	 * Gets the number of subscribers
+	 *
+	 * @return int
+	 */
+	public int subscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Starts the background threads on first subscription
+	 */
+	private void start() {
+		if( ticker != null )
+			return;
+
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "directory-notifier");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		delivery = Executors.newFixedThreadPool(DELIVERY_THREADS, daemons);
+		ticker = Executors.newSingleThreadScheduledExecutor(daemons);
+
+		long interval = Long.getLong("directory.batchInterval", DEFAULT_BATCH_INTERVAL);
+		ticker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					notifySubscribers();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends each subscriber that isn't busy the changes it hasn't seen yet
+	 */
+	private void notifySubscribers() throws RemoteException {
+		long current = list.version();
+		long now = System.currentTimeMillis();
+		long timeout = Long.getLong("directory.deliveryTimeout", DEFAULT_DELIVERY_TIMEOUT);
+
+		List<Subscriber> due = new ArrayList<Subscriber>();
+		for( Subscriber s : subscribers.values() ) {
+			boolean hung = false;
+			synchronized( s ) {
+				if( s.inFlight ) {
+					// Counted as a failure - one hung call is enough to drop it. Not started yet if
+					// the delivery threads are all busy with other subscribers
+					hung = s.sentAt != 0 && now - s.sentAt > timeout;
+					if( hung )
+						s.failures++;
+				} else if( s.version != current || now - s.lastSent >= HEARTBEAT_INTERVAL ) {
+					s.inFlight = true;
+					s.sentAt = 0;
+					due.add(s);
+				}
+			}
+			if( hung )
+				subscribers.remove(s.listener);
+		}
+
+		for( final Subscriber s : due ) {
+			final ListDelta<T> delta = list.changesSince(s.version);
+			delivery.execute(new Runnable() {
+				public void run() {
+					deliver(s, delta);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Makes one delivery call, dropping the subscriber if it keeps failing
+	 */
+	private void deliver(Subscriber s, ListDelta<T> delta) {
+		synchronized( s ) {
+			s.sentAt = System.currentTimeMillis();
+		}
+		try {
+			s.listener.directoryChanged(delta);
+			synchronized( s ) {
+				s.version = delta.getVersion();
+				s.failures = 0;
+			}
+		} catch (RemoteException e) {
+			boolean drop;
+			synchronized( s ) {
+				drop = ++s.failures >= MAX_FAILURES;
+			}
+			if( drop )
+				subscribers.remove(s.listener);
+		} finally {
+			synchronized( s ) {
+				s.lastSent = System.currentTimeMillis();
+				s.inFlight = false;
+			}
+		}
+	}
+
+	/**
+	 * A subscriber and the last version it was sent
+	 */
+	private class Subscriber {
+		DirectoryListener<T> listener;
+		long version;
+		long lastSent;
+		int failures;
+		boolean inFlight;
+		
+		// When the current delivery call started - 0 while it's still queued
+		long sentAt;
+
+		Subscriber(DirectoryListener<T> listener, long version) {
+			this.listener = listener;
+			this.version = version;
+			this.lastSent = System.currentTimeMillis();
+		}
+	}
+}
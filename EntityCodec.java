@@ -0,0 +1,513 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.RemoteServer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written binary format for the persisted state of Meters, PowerCompanies, Brokers and Tariffs.
+ *
+ * Every encoding starts with a magic number, a format version and an entity type. Readings (broker
+ * histories before version 4, and meter histories in version 1 files) are written as zig-zag varint
+ * deltas, usage summaries as their non-empty buckets, meter ids
+ * are written once into a string table and referred to by index, and remote stubs go into a single
+ * trailing reference block so their class descriptors are only written once. Files written with
+ * plain Java serialization are still readable.
+ */
+public class EntityCodec {
+
+	public static final int MAGIC = 0x534D4543; // "SMEC"
+	// Version 2 dropped meter readings, which now live in the meter's ReadingStore
+	// Version 3 added supplier switches in progress to meters and brokers
+	// Version 4 added meters' usage summaries, and brokers keep summaries rather than histories
+	// Version 5 added where a meter's usage summary starts, as old readings can now be rolled up
+	// Version 6 widened usage summaries' exact buckets from 512 to 1024, past every tariff threshold
+	public static final int VERSION = 6;
+
+	// Entity types
+	public static final int METER = 1;
+	public static final int POWER_COMPANY = 2;
+	public static final int BROKER = 3;
+	public static final int TARIFF = 4;
+
+	// First two bytes of a Java serialization stream (ObjectStreamConstants.STREAM_MAGIC)
+	private static final int JAVA_STREAM_MAGIC = 0xACED;
+
+	private EntityCodec() {}
+
+	/* ---------------------------------------------------------------- */
+	/* Encoding                                                         */
+	/* ---------------------------------------------------------------- */
+
+	/**
+	 * Encodes a Meter
+	 *
+	 * @param m Meter
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public static byte[] encodeMeter(Meter m) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeHeader(out, METER);
+
+		out.writeUTF(m.getId());
+		writeNullableString(out, m.getPowerCompanyName());
+		writeNullableString(out, m.getBrokerName());
+		writeNullableString(out, m.getSwitchId());
+		out.writeByte(m.getSwitchStep());
+		UsageSummary usage;
+		int usageStart;
+		synchronized( m ) {
+			usage = m.usage();
+			usageStart = m.getUsageStart();
+		}
+		writeVarint(out, usageStart);
+		usage.write(out);
+
+		List<Remote> refs = new ArrayList<Remote>();
+		refs.add(m.getPowerCompany());
+		refs.add(m.getBroker());
+		writeReferences(out, refs);
+
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes a PowerCompany
+	 *
+	 * @param pc PowerCompany
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public static byte[] encodePowerCompany(PowerCompany pc) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeHeader(out, POWER_COMPANY);
+
+		out.writeUTF(pc.getName());
+		writeTariff(out, pc.getTariffDetails());
+
+		// Copies, as RMI threads change the maps while we save - the table, counts and entries must agree
+		Map<String, MeterInterface> customers = new HashMap<String, MeterInterface>(pc.getCustomers());
+		Map<String, Integer> readings = new HashMap<String, Integer>(pc.getReadings());
+		StringTable table = new StringTable();
+		table.addAll(customers.keySet());
+		table.addAll(readings.keySet());
+		table.write(out);
+
+		List<Remote> refs = new ArrayList<Remote>();
+		writeVarint(out, customers.size());
+		for( Map.Entry<String, MeterInterface> customer : customers.entrySet() ) {
+			writeVarint(out, table.indexOf(customer.getKey()));
+			refs.add(customer.getValue());
+		}
+
+		writeVarint(out, readings.size());
+		for( Map.Entry<String, Integer> reading : readings.entrySet() ) {
+			writeVarint(out, table.indexOf(reading.getKey()));
+			writeSignedVarint(out, reading.getValue());
+		}
+
+		writeReferences(out, refs);
+
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes a Broker
+	 *
+	 * @param b Broker
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public static byte[] encodeBroker(Broker b) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeHeader(out, BROKER);
+
+		out.writeUTF(b.getName());
+
+		// Copies, as RMI and worker threads change the maps while we save
+		Map<String, MeterInterface> customers = new HashMap<String, MeterInterface>(b.getCustomers());
+		Map<String, UsageSummary> summaries = new HashMap<String, UsageSummary>(b.getSummaries());
+		StringTable table = new StringTable();
+		table.addAll(customers.keySet());
+		table.addAll(summaries.keySet());
+		table.write(out);
+
+		List<Remote> refs = new ArrayList<Remote>();
+		writeVarint(out, customers.size());
+		for( Map.Entry<String, MeterInterface> customer : customers.entrySet() ) {
+			writeVarint(out, table.indexOf(customer.getKey()));
+			refs.add(customer.getValue());
+		}
+
+		writeVarint(out, summaries.size());
+		for( Map.Entry<String, UsageSummary> summary : summaries.entrySet() ) {
+			writeVarint(out, table.indexOf(summary.getKey()));
+			summary.getValue().write(out);
+		}
+
+		Map<String, Broker.PendingSwitch> switches = b.getSwitches();
+		synchronized( switches ) {
+			writeVarint(out, switches.size());
+			for( Map.Entry<String, Broker.PendingSwitch> move : switches.entrySet() ) {
+				out.writeUTF(move.getKey());
+				out.writeUTF(move.getValue().meterId);
+				out.writeUTF(move.getValue().pcName);
+			}
+		}
+
+		writeReferences(out, refs);
+
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes a Tariff on its own
+	 *
+	 * @param t Tariff
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public static byte[] encodeTariff(Tariff t) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeHeader(out, TARIFF);
+		writeTariff(out, t);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Decoding                                                         */
+	/* ---------------------------------------------------------------- */
+
+	/**
+	 * Decodes a Meter, falling back to Java serialization for old save files
+	 *
+	 * @param data byte[]
+	 * @return Meter
+	 * @throws IOException
+	 */
+	public static Meter decodeMeter(byte[] data) throws IOException {
+		if( isJavaSerialized(data) )
+			return (Meter) readJavaSerialized(data);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int version = readHeader(in, METER);
+
+		String id = in.readUTF();
+		ReadingBuffer readings = version == 1 ? ReadingBuffer.read(in) : null;
+		String pcName = readNullableString(in);
+		String brokerName = readNullableString(in);
+		String switchId = version >= 3 ? readNullableString(in) : null;
+		int switchStep = version >= 3 ? in.readUnsignedByte() : Meter.SWITCH_STARTED;
+		int usageStart = version >= 5 ? readVarint(in) : 0;
+		UsageSummary usage = version >= 6 ? UsageSummary.read(in) : version >= 4 ? UsageSummary.readLegacy(in) : null;
+
+		Object[] refs = readReferences(in);
+
+		Meter m = new Meter(id, readings, pcName, (PowerCompanyInterface) refs[0], brokerName, (BrokerInterface) refs[1]);
+		m.restoreSwitch(switchId, switchStep);
+		m.restoreUsage(usage, usageStart);
+		return m;
+	}
+
+	/**
+	 * Decodes a PowerCompany, falling back to Java serialization for old save files
+	 *
+	 * @param data byte[]
+	 * @return PowerCompany
+	 * @throws IOException
+	 */
+	public static PowerCompany decodePowerCompany(byte[] data) throws IOException {
+		if( isJavaSerialized(data) )
+			return (PowerCompany) readJavaSerialized(data);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		readHeader(in, POWER_COMPANY);
+
+		String name = in.readUTF();
+		Tariff tariff = readTariff(in);
+		String[] table = StringTable.read(in);
+
+		int customerCount = readVarint(in);
+		String[] customerIds = new String[customerCount];
+		for( int i = 0; i < customerCount; i++ )
+			customerIds[i] = table[readVarint(in)];
+
+		int readingCount = readVarint(in);
+		Map<String, Integer> readings = new HashMap<String, Integer>();
+		for( int i = 0; i < readingCount; i++ ) {
+			String id = table[readVarint(in)];
+			readings.put(id, readSignedVarint(in));
+		}
+
+		Object[] refs = readReferences(in);
+		Map<String, MeterInterface> customers = new HashMap<String, MeterInterface>();
+		for( int i = 0; i < customerCount; i++ )
+			customers.put(customerIds[i], (MeterInterface) refs[i]);
+
+		return new PowerCompany(name, tariff, customers, readings);
+	}
+
+	/**
+	 * Decodes a Broker, falling back to Java serialization for old save files
+	 *
+	 * @param data byte[]
+	 * @return Broker
+	 * @throws IOException
+	 */
+	public static Broker decodeBroker(byte[] data) throws IOException {
+		if( isJavaSerialized(data) )
+			return (Broker) readJavaSerialized(data);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		int version = readHeader(in, BROKER);
+
+		String name = in.readUTF();
+		String[] table = StringTable.read(in);
+
+		int customerCount = readVarint(in);
+		String[] customerIds = new String[customerCount];
+		for( int i = 0; i < customerCount; i++ )
+			customerIds[i] = table[readVarint(in)];
+
+		// Older files hold full histories - summarise them
+		int summaryCount = readVarint(in);
+		Map<String, UsageSummary> summaries = new HashMap<String, UsageSummary>();
+		for( int i = 0; i < summaryCount; i++ ) {
+			String id = table[readVarint(in)];
+			summaries.put(id, version >= 6 ? UsageSummary.read(in) : version >= 4 ? UsageSummary.readLegacy(in) 
+					: UsageSummary.of(ReadingBuffer.read(in)));
+		}
+
+		Map<String, Broker.PendingSwitch> switches = new HashMap<String, Broker.PendingSwitch>();
+		int switchCount = version >= 3 ? readVarint(in) : 0;
+		for( int i = 0; i < switchCount; i++ ) {
+			String switchId = in.readUTF();
+			switches.put(switchId, new Broker.PendingSwitch(in.readUTF(), in.readUTF()));
+		}
+
+		Object[] refs = readReferences(in);
+		Map<String, MeterInterface> customers = new HashMap<String, MeterInterface>();
+		for( int i = 0; i < customerCount; i++ )
+			customers.put(customerIds[i], (MeterInterface) refs[i]);
+
+		Broker b = new Broker(name, customers, summaries);
+		b.getSwitches().putAll(switches);
+		return b;
+	}
+
+	/**
+	 * Decodes a Tariff written by encodeTariff
+	 *
+	 * @param data byte[]
+	 * @return Tariff
+	 * @throws IOException
+	 */
+	public static Tariff decodeTariff(byte[] data) throws IOException {
+		if( isJavaSerialized(data) )
+			return (Tariff) readJavaSerialized(data);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		readHeader(in, TARIFF);
+		return readTariff(in);
+	}
+
+	/* ---------------------------------------------------------------- */
+	/* Helpers                                                          */
+	/* ---------------------------------------------------------------- */
+
+	private static void writeHeader(DataOutput out, int type) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(type);
+	}
+
+	private static int readHeader(DataInput in, int type) throws IOException {
+		if( in.readInt() != MAGIC )
+			throw new IOException("Not an entity codec file");
+		int version = in.readUnsignedByte();
+		if( version < 1 || version > VERSION )
+			throw new IOException("Unsupported codec version " + version);
+		int found = in.readUnsignedByte();
+		if( found != type )
+			throw new IOException("Expected entity type " + type + " but found " + found);
+		return version;
+	}
+
+	private static void writeTariff(DataOutput out, Tariff t) throws IOException {
+		writeSignedVarint(out, t.getDayCost());
+		writeSignedVarint(out, t.getNightCost());
+		writeSignedVarint(out, t.getDiscount());
+		writeSignedVarint(out, t.getThreshold());
+	}
+
+	private static Tariff readTariff(DataInput in) throws IOException {
+		return new Tariff(readSignedVarint(in), readSignedVarint(in), readSignedVarint(in), readSignedVarint(in));
+	}
+
+	private static void writeNullableString(DataOutput out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if( s != null )
+			out.writeUTF(s);
+	}
+
+	private static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Writes remote references in one length-prefixed serialization block. Exported objects are
+	 * swapped for their stubs, as RMI would do when passing them remotely.
+	 */
+	private static void writeReferences(DataOutput out, List<Remote> refs) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new StubOutputStream(bytes);
+		oos.writeObject(refs.toArray(new Remote[refs.size()]));
+		oos.close();
+
+		byte[] block = bytes.toByteArray();
+		writeVarint(out, block.length);
+		out.write(block);
+	}
+
+	private static Object[] readReferences(DataInput in) throws IOException {
+		byte[] block = new byte[readVarint(in)];
+		in.readFully(block);
+		return (Object[]) readJavaSerialized(block);
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte
+	 */
+	static void writeVarint(DataOutput out, int value) throws IOException {
+		while( (value & ~0x7F) != 0 ) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarint(DataInput in) throws IOException {
+		int value = 0;
+		for( int shift = 0; shift < 35; shift += 7 ) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if( (b & 0x80) == 0 )
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Writes a signed varint using zig-zag encoding so small negative values stay small
+	 */
+	static void writeSignedVarint(DataOutput out, int value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 31));
+	}
+
+	static int readSignedVarint(DataInput in) throws IOException {
+		int raw = readVarint(in);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	/**
+	 * Checks if data starts like an encoding written by this class or by plain Java serialization
+	 * (a Java stream version 5, or a codec header of a known version and entity type)
+	 *
+	 * @param data byte[]
+	 * @return boolean
+	 */
+	static boolean isEncoding(byte[] data) {
+		if( isJavaSerialized(data) )
+			return data.length >= 4 && data[2] == 0 && data[3] == 5;
+		if( data.length < 6 )
+			return false;
+		int magic = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+		int version = data[4] & 0xFF;
+		int type = data[5] & 0xFF;
+		return magic == MAGIC && version >= 1 && version <= VERSION && type >= METER && type <= TARIFF;
+	}
+
+	private static boolean isJavaSerialized(byte[] data) {
+		return data.length >= 2 && (((data[0] & 0xFF) << 8) | (data[1] & 0xFF)) == JAVA_STREAM_MAGIC;
+	}
+
+	private static Object readJavaSerialized(byte[] data) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * Ids in first-seen order, each written once
+	 */
+	private static class StringTable {
+		private Map<String, Integer> indexes = new LinkedHashMap<String, Integer>();
+
+		void addAll(Iterable<String> strings) {
+			for( String s : strings ) {
+				if( !indexes.containsKey(s) )
+					indexes.put(s, indexes.size());
+			}
+		}
+
+		int indexOf(String s) {
+			return indexes.get(s);
+		}
+
+		void write(DataOutput out) throws IOException {
+			writeVarint(out, indexes.size());
+			for( String s : indexes.keySet() )
+				out.writeUTF(s);
+		}
+
+		static String[] read(DataInput in) throws IOException {
+			String[] table = new String[readVarint(in)];
+			for( int i = 0; i < table.length; i++ )
+				table[i] = in.readUTF();
+			return table;
+		}
+	}
+
+	/**
+	 * Replaces exported remote objects with their stubs
+	 */
+	private static class StubOutputStream extends ObjectOutputStream {
+		StubOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		protected Object replaceObject(Object obj) throws IOException {
+			if( obj instanceof RemoteServer )
+				return RemoteObject.toStub((Remote) obj);
+			return obj;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Batches fsyncs across entities.
+ *
+ * Snapshots and reading log appends made inside a group are made durable together when the group
+ * ends: every pending file is forced once, the snapshots are renamed into place and each affected
+ * directory is forced once. The write-behind scheduler wraps each flush in a group, so a flush of
+ * many entities costs one round of fsyncs rather than one per entity or per reading.
+ */
+public class GroupCommit {
+
+	private static final GroupCommit instance = new GroupCommit();
+
+	private final List<Pending> pending = new ArrayList<Pending>();
+	private final Set<Syncable> logs = new LinkedHashSet<Syncable>();
+
+	// How deep the current thread is inside begin()/end()
+	private final ThreadLocal<Integer> depth = new ThreadLocal<Integer>() {
+		protected Integer initialValue() {
+			return 0;
+		}
+	};
+
+	private GroupCommit() {}
+
+	/**
+	 * Gets the group commit shared by this JVM
+	 *
+	 * @return GroupCommit
+	 */
+	public static GroupCommit getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts a group - snapshots written until the matching end() are committed together
+	 */
+	public void begin() {
+		depth.set(depth.get() + 1);
+	}
+
+	/**
+	 * Ends a group, committing everything pending once the outermost group ends
+	 */
+	public void end() {
+		int d = depth.get() - 1;
+		depth.set(d);
+		if( d == 0 )
+			commit();
+	}
+
+	/**
+	 * Adds a fully written temp file. Outside a group it is committed straight away.
+	 *
+	 * @param temp File
+	 * @param target File
+	 * @param onCommit Runnable
+	 */
+	void add(File temp, File target, Runnable onCommit) {
+		synchronized( this ) {
+			pending.add(new Pending(temp, target, onCommit));
+		}
+		if( depth.get() == 0 )
+			commit();
+	}
+
+	/**
+	 * Notes that a reading log or store has unsynced appends
+	 *
+	 * @param log Syncable
+	 */
+	void written(Syncable log) {
+		boolean added;
+		synchronized( this ) {
+			added = logs.add(log);
+		}
+		
+		// Appends are only synced by the next commit, which the scheduler's flushes make - an
+		// entity that only ever appends might otherwise never have started it
+		if( added )
+			PersistenceScheduler.getInstance();
+	}
+
+	/**
+	 * Makes everything pending durable
+	 */
+	public void commit() {
+		// One commit at a time, so snapshots of the same entity are renamed in the order they were written
+		synchronized( GroupCommit.class ) {
+			List<Pending> batch;
+			List<Syncable> dirtyLogs;
+			synchronized( this ) {
+				if( pending.isEmpty() && logs.isEmpty() )
+					return;
+				batch = new ArrayList<Pending>(pending);
+				dirtyLogs = new ArrayList<Syncable>(logs);
+				pending.clear();
+				logs.clear();
+			}
+
+			for( Syncable log : dirtyLogs ) {
+				try {
+					log.sync();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			Set<File> directories = new LinkedHashSet<File>();
+			for( Pending p : batch ) {
+				try {
+					force(p.temp, false);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+
+			for( Pending p : batch ) {
+				try {
+					// Keep the previous good snapshot, then move the new one into place
+					if( p.target.exists() )
+						Files.move(p.target.toPath(), SnapshotFile.backupOf(p.target).toPath(),
+								StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					Files.move(p.temp.toPath(), p.target.toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					directories.add(p.target.getAbsoluteFile().getParentFile());
+				} catch (IOException e) {
+					e.printStackTrace();
+					p.onCommit = null;
+				}
+			}
+
+			for( File dir : directories ) {
+				try {
+					force(dir, true);
+				} catch (IOException e) {
+					// Not every platform lets us sync a directory
+				}
+			}
+
+			for( Pending p : batch ) {
+				if( p.onCommit != null )
+					p.onCommit.run();
+			}
+		}
+	}
+
+	/**
+	 * Forces a file or directory to disk
+	 */
+	private static void force(File f, boolean directory) throws IOException {
+		if( directory ) {
+			FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} else {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.getChannel().force(true);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * A snapshot waiting to be committed
+	 */
+	private static class Pending {
+		File temp;
+		File target;
+		Runnable onCommit;
+
+		Pending(File temp, File target, Runnable onCommit) {
+			this.temp = temp;
+			this.target = target;
+			this.onCommit = onCommit;
+		}
+	}
+}
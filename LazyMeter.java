@@ -0,0 +1,249 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * Lightweight stand-in for a Meter, bound in the registry under the meter's id.
+ *
+ * The Meter itself is only loaded by the MeterActivator on the first remote call, and may be
+ * passivated back to disk again once it has been idle for a while. Callers never notice - they
+ * hold this object's stub throughout.
+ */
+public class LazyMeter extends UnicastRemoteObject implements MeterInterface {
+
+	private static final long serialVersionUID = -3198461726618354721L;
+
+	private String id;
+	private transient MeterActivator activator;
+
+	// Null while passivated
+	private transient Meter meter;
+
+	// Calls currently running against the meter - it isn't passivated under them
+	private transient int calls;
+
+	/**
+	 * Constructor
+	 *
+	 * @param id String
+	 * @param activator MeterActivator
+	 * @throws RemoteException
+	 */
+	LazyMeter(String id, MeterActivator activator) throws RemoteException {
+		super();
+		this.id = id;
+		this.activator = activator;
+	}
+
+	/**
+	 * Gets the meter, loading it if it isn't resident
+	 *
+	 * @return Meter
+	 * @throws RemoteException
+	 */
+	private Meter activate() throws RemoteException {
+		Meter m;
+		synchronized( this ) {
+			if( meter == null )
+				meter = activator.load(id, this);
+			m = meter;
+			calls++;
+		}
+		// Outside our lock - touching may passivate other meters
+		activator.touched(this);
+		return m;
+	}
+
+	/**
+	 * Marks the end of a call started by activate()
+	 */
+	private synchronized void release() {
+		calls--;
+	}
+
+	/**
+	 * Saves and drops the meter unless a call is running against it. A meter sending readings to
+	 * a power company is kept - only a remote call would load it again, and its timer would stop.
+	 *
+	 * @return boolean : true if the meter is no longer resident
+	 */
+	synchronized boolean passivate() {
+		if( meter == null )
+			return true;
+		if( meter.isReporting() )
+			return false;
+		return unload();
+	}
+
+	/**
+	 * Saves and drops the meter unless a call is running against it, even if it's sending
+	 * readings (on shutdown)
+	 *
+	 * @return boolean : true if the meter is no longer resident
+	 */
+	synchronized boolean unload() {
+		if( meter == null )
+			return true;
+		if( calls > 0 )
+			return false;
+		// Offers in the inbox only live in memory
+		if( meter.hasOffers() )
+			return false;
+
+		activator.unload(meter);
+		meter = null;
+		return true;
+	}
+
+	/**
+	 * Checks if the meter is loaded and sending readings to a power company
+	 *
+	 * @return boolean
+	 */
+	synchronized boolean isReporting() {
+		return meter != null && meter.isReporting();
+	}
+
+	/**
+	 * Checks if the meter is loaded
+	 *
+	 * @return boolean
+	 */
+	synchronized boolean isResident() {
+		return meter != null;
+	}
+
+	/**
+	 * Gets the meter's id
+	 *
+	 * @return String
+	 */
+	String id() {
+		return id;
+	}
+
+	/**
+	 * @Override
+	 */
+	public boolean receiveCommand(int command, String source) throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.receiveCommand(command, source);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public boolean deliverOffer(Offer offer) throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.deliverOffer(offer);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Answered without loading the meter
+	 *
+	 * @Override
+	 */
+	public String getId() throws RemoteException {
+		return id;
+	}
+
+	/**
+	 * @Override
+	 */
+	public ReadingBuffer getHistory(String brokerName, int resolution) throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.getHistory(brokerName, resolution);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public UsageSummary getUsageSummary(String brokerName) throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.getUsageSummary(brokerName);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public int getLatestReading() throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.getLatestReading();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public String getPowerCompanyName() throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.getPowerCompanyName();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public boolean setPowerCompany(PowerCompanyInterface pc) throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.setPowerCompany(pc);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public boolean switchSupplier(String switchId, String pcName, PowerCompanyInterface pc) throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.switchSupplier(switchId, pcName, pc);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @Override
+	 */
+	public boolean hasPowerCompany() throws RemoteException {
+		Meter m = activate();
+		try {
+			return m.hasPowerCompany();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Answered without loading the meter
+	 *
+	 * @Override
+	 */
+	public boolean ping() throws RemoteException {
+		return true;
+	}
+}
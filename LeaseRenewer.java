@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the central server's directory entries for this JVM's entities alive.
+ *
+ * Directory entries carry leases (see RemoteList.renewLeases). Every entity a server registers
+ * is handed to the renewer for its list, which renews all of them in batches a few times per
+ * lease. Anything the directory no longer knows about - e.g. the central server restarted or a
+ * renewal was missed - is added again.
+ */
+public class LeaseRenewer {
+
+	// Entries renewed per call
+	public static final int BATCH_SIZE = 500;
+
+	// Renewals per lease, so a couple can be missed before an entry expires
+	private static final int RENEWALS_PER_LEASE = 3;
+
+	// One renewer per list so every server in the JVM shares its thread
+	private static final ConcurrentMap<String, LeaseRenewer> renewers = new ConcurrentHashMap<String, LeaseRenewer>();
+
+	private String listName;
+	private LinkedHashSet<String> names = new LinkedHashSet<String>();
+	private Thread thread;
+
+	/**
+	 * Constructor
+	 *
+	 * @param listName String : name the list is bound under, e.g. meterList
+	 */
+	private LeaseRenewer(String listName) {
+		this.listName = listName;
+	}
+
+	/**
+	 * Gets the shared renewer for a list
+	 *
+	 * @param listName String
+	 * @return LeaseRenewer
+	 */
+	public static LeaseRenewer forList(String listName) {
+		LeaseRenewer renewer = renewers.get(listName);
+		if( renewer == null ) {
+			LeaseRenewer created = new LeaseRenewer(listName);
+			renewer = renewers.putIfAbsent(listName, created);
+			if( renewer == null )
+				renewer = created;
+		}
+		return renewer;
+	}
+
+	/**
+	 * Starts keeping an entry alive
+	 *
+	 * @param name String
+	 */
+	public void add(String name) {
+		addAll(Collections.singleton(name));
+	}
+
+	/**
+	 * Starts keeping entries alive
+	 *
+	 * @param names Collection<String>
+	 */
+	public synchronized void addAll(Collection<String> names) {
+		this.names.addAll(names);
+		start();
+	}
+
+	/**
+	 * Stops keeping an entry alive - it expires at the end of its current lease
+	 *
+	 * @param name String
+	 */
+	public synchronized void remove(String name) {
+		names.remove(name);
+	}
+
+	/**
+	 * Starts the renewal thread on first use
+	 */
+	private void start() {
+		if( thread != null )
+			return;
+
+		thread = new Thread("lease-renewer-" + listName) {
+			public void run() {
+				long leaseDuration = Long.getLong("directory.leaseDuration", RemoteList.DEFAULT_LEASE_DURATION);
+				while( true ) {
+					try {
+						Thread.sleep(leaseDuration / RENEWALS_PER_LEASE);
+						leaseDuration = renew();
+					} catch (InterruptedException e) {
+						return;
+					} catch (Exception e) {
+						// Central server unreachable - keep trying, entries are added back once it returns
+						System.err.println("Unable to renew " + listName + " leases: " + e.getMessage());
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Renews every lease, a batch at a time
+	 *
+	 * @return long : the directory's lease duration
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	private long renew() throws Exception {
+		List<String> all;
+		synchronized( this ) {
+			all = new ArrayList<String>(names);
+		}
+
+		try {
+			RemoteListInterface<String> list = (RemoteListInterface<String>) StubResolver.lookup(listName);
+			for( int from = 0; from < all.size(); from += BATCH_SIZE ) {
+				ArrayList<String> batch = new ArrayList<String>(all.subList(from, Math.min(from + BATCH_SIZE, all.size())));
+				ArrayList<String> unknown = list.renewLeases(batch);
+				if( !unknown.isEmpty() )
+					list.addObjects(unknown);
+			}
+			return list.leaseDuration();
+		} catch (Exception e) {
+			StubResolver.failed(listName, e);
+			throw e;
+		}
+	}
+}
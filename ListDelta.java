@@ -0,0 +1,87 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Helper class, the entries added to and removed from a RemoteList since a given version
+ */
+public class ListDelta<T> implements Serializable {
+
+	private static final long serialVersionUID = 4471859285903516247L;
+
+	private long epoch;
+	private long fromVersion;
+	private long version;
+	private ArrayList<T> added;
+	private ArrayList<T> removed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param epoch long : identifies the list - a new list starts a new epoch and versions restart
+	 * @param fromVersion long : version the changes apply on top of - 0 means this is the whole list
+	 * @param version long : version after the changes
+	 * @param added ArrayList<T>
+	 * @param removed ArrayList<T>
+	 */
+	public ListDelta(long epoch, long fromVersion, long version, ArrayList<T> added, ArrayList<T> removed) {
+		this.epoch = epoch;
+		this.fromVersion = fromVersion;
+		this.version = version;
+		this.added = added;
+		this.removed = removed;
+	}
+
+	/**
+	 * Accessor for the epoch variable
+	 *
+	 * @return long
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Accessor for the fromVersion variable
+	 *
+	 * @return long
+	 */
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	/**
+	 * Accessor for the version variable
+	 *
+	 * @return long
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Accessor for the added variable
+	 *
+	 * @return ArrayList<T>
+	 */
+	public ArrayList<T> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Accessor for the removed variable
+	 *
+	 * @return ArrayList<T>
+	 */
+	public ArrayList<T> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Checks if there's anything in the delta
+	 *
+	 * @return boolean
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && removed.isEmpty() && fromVersion == version;
+	}
+}
@@ -0,0 +1,301 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent index of the entities saved in one save_data folder.
+ *
+ * Entity files live in hashed shard subdirectories, so the manifest maps each id to its file,
+ * last-modified time and size. It is kept in memory as a sorted map and persisted as an
+ * append-only ReadingLog of put/remove records, compacted once it holds mostly stale records.
+ * Listing, existence checks and lookups never touch the directories themselves.
+ */
+public class Manifest {
+
+	public static final String FILE_NAME = "manifest.idx";
+
+	// Number of shard subdirectories per folder
+	public static final int SHARDS = 256;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	// Compact once the log holds this many more records than there are entries
+	private static final int COMPACT_SLACK = 1024;
+
+	private static final ConcurrentMap<String, Manifest> manifests = new ConcurrentHashMap<String, Manifest>();
+
+	private File folder;
+	private String suffix;
+	private ReadingLog log;
+	private TreeMap<String, Location> entries;
+	private int logRecords;
+
+	/**
+	 * Constructor
+	 *
+	 * @param folder File : the entity folder, e.g. save_data/meters
+	 * @param suffix String : extension of the entity's snapshot files, e.g. ".met"
+	 */
+	private Manifest(File folder, String suffix) {
+		this.folder = folder;
+		this.suffix = suffix;
+		this.log = ReadingLog.forFile(new File(folder, FILE_NAME));
+	}
+
+	/**
+	 * Gets the shared manifest for a folder
+	 *
+	 * @param folder File
+	 * @param suffix String
+	 * @return Manifest
+	 */
+	public static Manifest forFolder(File folder, String suffix) {
+		String key = folder.getAbsolutePath();
+		Manifest manifest = manifests.get(key);
+		if( manifest == null ) {
+			Manifest created = new Manifest(folder, suffix);
+			manifest = manifests.putIfAbsent(key, created);
+			if( manifest == null )
+				manifest = created;
+		}
+		return manifest;
+	}
+
+	/**
+	 * Gets the shard subdirectory name for an id
+	 *
+	 * @param id String
+	 * @return String
+	 */
+	public static String shardOf(String id) {
+		return String.format("%02x", (id.hashCode() & 0x7FFFFFFF) % SHARDS);
+	}
+
+	/**
+	 * Records that an entity's snapshot has been written
+	 *
+	 * @param id String
+	 * @param f File
+	 * @throws IOException
+	 */
+	public synchronized void put(String id, File f) throws IOException {
+		load();
+		Location entry = new Location(relativePath(f), f.lastModified(), f.length());
+		entries.put(id, entry);
+		append(PUT, id, entry);
+	}
+
+	/**
+	 * Records that an entity has been deleted
+	 *
+	 * @param id String
+	 * @throws IOException
+	 */
+	public synchronized void remove(String id) throws IOException {
+		load();
+		if( entries.remove(id) != null )
+			append(REMOVE, id, null);
+	}
+
+	/**
+	 * Checks if an entity has been saved
+	 *
+	 * @param id String
+	 * @return boolean
+	 * @throws IOException
+	 */
+	public synchronized boolean contains(String id) throws IOException {
+		load();
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * Gets the snapshot file of an entity
+	 *
+	 * @param id String
+	 * @return File : or null if it isn't in the manifest
+	 * @throws IOException
+	 */
+	public synchronized File fileOf(String id) throws IOException {
+		load();
+		Location entry = entries.get(id);
+		return entry == null ? null : new File(folder, entry.path);
+	}
+
+	/**
+	 * Gets the last-modified time recorded for an entity
+	 *
+	 * @param id String
+	 * @return long : or 0 if it isn't in the manifest
+	 * @throws IOException
+	 */
+	public synchronized long lastModified(String id) throws IOException {
+		load();
+		Location entry = entries.get(id);
+		return entry == null ? 0 : entry.lastModified;
+	}
+
+	/**
+	 * Gets the size recorded for an entity
+	 *
+	 * @param id String
+	 * @return long : or 0 if it isn't in the manifest
+	 * @throws IOException
+	 */
+	public synchronized long sizeOf(String id) throws IOException {
+		load();
+		Location entry = entries.get(id);
+		return entry == null ? 0 : entry.size;
+	}
+
+	/**
+	 * Lists every saved id in sorted order
+	 *
+	 * @return List<String>
+	 * @throws IOException
+	 */
+	public synchronized List<String> ids() throws IOException {
+		load();
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Gets the number of saved entities
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int size() throws IOException {
+		load();
+		return entries.size();
+	}
+
+	/**
+	 * Loads the manifest from its log, building it from the folder the first time
+	 */
+	private void load() throws IOException {
+		if( entries != null )
+			return;
+
+		entries = new TreeMap<String, Location>();
+		if( !folder.exists() )
+			return;
+		if( !log.getFile().exists() ) {
+			rebuild();
+			return;
+		}
+
+		List<byte[]> records = log.readAll();
+		for( byte[] record : records ) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			byte op = in.readByte();
+			String id = in.readUTF();
+			if( op == PUT )
+				entries.put(id, new Location(in.readUTF(), in.readLong(), in.readLong()));
+			else
+				entries.remove(id);
+		}
+		logRecords = records.size();
+	}
+
+	/**
+	 * Scans the folder once - moving any files from the old flat layout into their shard - and
+	 * writes a fresh manifest
+	 */
+	private void rebuild() throws IOException {
+		File[] files = folder.listFiles();
+		if( files != null ) {
+			for( File f : files ) {
+				if( f.isDirectory() || f.getName().equals(FILE_NAME) )
+					continue;
+
+				String name = f.getName();
+				String id = name.substring(0, name.indexOf('.') < 0 ? name.length() : name.indexOf('.'));
+				File shard = new File(folder, shardOf(id));
+				shard.mkdirs();
+				Files.move(f.toPath(), new File(shard, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		File[] shards = folder.listFiles();
+		if( shards != null ) {
+			for( File shard : shards ) {
+				if( !shard.isDirectory() )
+					continue;
+				for( String name : shard.list() ) {
+					if( name.toLowerCase().endsWith(suffix) ) {
+						File f = new File(shard, name);
+						entries.put(name.substring(0, name.length() - suffix.length()),
+								new Location(relativePath(f), f.lastModified(), f.length()));
+					}
+				}
+			}
+		}
+		compact();
+	}
+
+	/**
+	 * Appends a record, compacting the log if it has grown well beyond the live entries
+	 */
+	private void append(byte op, String id, Location entry) throws IOException {
+		logRecords = log.append(encode(op, id, entry));
+		if( logRecords > entries.size() * 2 + COMPACT_SLACK )
+			compact();
+	}
+
+	/**
+	 * Rewrites the log as one put per live entry
+	 */
+	private void compact() throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>(entries.size());
+		for( Map.Entry<String, Location> e : entries.entrySet() )
+			records.add(encode(PUT, e.getKey(), e.getValue()));
+		log.replaceAll(records);
+		logRecords = records.size();
+	}
+
+	private static byte[] encode(byte op, String id, Location entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(op);
+		out.writeUTF(id);
+		if( op == PUT ) {
+			out.writeUTF(entry.path);
+			out.writeLong(entry.lastModified);
+			out.writeLong(entry.size);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private String relativePath(File f) {
+		return f.getParentFile().getName() + "/" + f.getName();
+	}
+
+	/**
+	 * Where an entity is saved
+	 */
+	private static class Location {
+		String path;
+		long lastModified;
+		long size;
+
+		Location(String path, long lastModified, long size) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+	}
+}
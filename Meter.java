@@ -1,13 +1,16 @@
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.net.MalformedURLException;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Timer;
@@ -17,11 +20,29 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 
 
 	private static final long serialVersionUID = 1731042652319629745L;
+	
+	// Steps of a supplier switch (see switchSupplier), in order
+	static final int SWITCH_STARTED = 0;
+	static final int SWITCH_LEFT_OLD = 1;
+	static final int SWITCH_JOINED_NEW = 2;
+	static final int SWITCH_DONE = 3;
+	
+	// How often old readings are rolled up (see ReadingHistory) - override with -Dmeter.compactInterval=ms
+	static final long DEFAULT_COMPACT_INTERVAL = ReadingHistory.HOUR;
+	
+	// How often a reading is taken and sent to the power company
+	static final long READING_INTERVAL = 60000;
 
 	private String id;
 	
-	// Readings history
-	private ArrayList<Integer> meterReadings;
+	// Readings history - kept in a memory-mapped file rather than on the heap
+	private transient ReadingStore meterReadings;
+	
+	// Summary of the readings for brokers - kept up to date as readings are appended
+	private transient UsageSummary usage;
+	
+	// Position in the reading store of the first reading in the summary
+	private transient int usageStart;
 	
 	// Power Company details
 	private PowerCompanyInterface powerCompany = null;
@@ -31,9 +52,22 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 	private BrokerInterface broker = null;
 	private String brokerName;
 	
+	// Latest supplier switch and how far it got - saved so a retried switch carries on where it stopped
+	private String switchId;
+	private int switchStep;
+	
 	private transient Timer timer;
 	private transient DataPersistence dp;
 	
+	// Offers from our broker waiting for an answer, by offer id
+	private transient Map<String, Offer> offers;
+	
+	// What we hand to other entities - a LazyMeter when we're activated by a MeterActivator
+	private transient MeterInterface self;
+	
+	// Held for the whole of a supplier switch, so the meter itself isn't locked during the remote calls
+	private transient Object switchLock;
+	
 	/**
 	 * Constructor
 	 * 
@@ -44,14 +78,41 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 		this.id = id;
 		print("Setting up meter " + id);
 		
+		dp = new DataPersistence();
+		
 		// Add a first meter reading of 0
-		meterReadings = new ArrayList<Integer>();
-		meterReadings.add(0);
+		try {
+			if( readings().total() == 0 )
+				readings().append(System.currentTimeMillis(), 0);
+		} catch (IOException e) {
+			throw new RemoteException("Unable to create reading history for meter " + id, e);
+		}
 		
-		timer = new Timer();
+		dp.saveMeter(this);
+	}
+	
+	/**
+	 * Constructor - restores a meter from saved state (see EntityCodec)
+	 * 
+	 * @param id String
+	 * @param legacyReadings ReadingBuffer : history from an older save file to move into the store (may be null)
+	 * @param pcName String
+	 * @param powerCompany PowerCompanyInterface
+	 * @param brokerName String
+	 * @param broker BrokerInterface
+	 * @throws RemoteException
+	 */
+	Meter(String id, ReadingBuffer legacyReadings, String pcName, PowerCompanyInterface powerCompany, 
+			String brokerName, BrokerInterface broker) throws RemoteException {
+		this.id = id;
+		this.pcName = pcName;
+		this.powerCompany = powerCompany;
+		this.brokerName = brokerName;
+		this.broker = broker;
 		
 		dp = new DataPersistence();
-		dp.saveMeter(this);
+		
+		importReadings(legacyReadings);
 	}
 	
 	/**
@@ -60,17 +121,259 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 	 * @Override
 	 * @param inputStream ObjectInputStream
 	 */
+	@SuppressWarnings("unchecked")
 	private void readObject(ObjectInputStream inputStream) {
 		try {
-			inputStream.defaultReadObject();
+			// Read field by field - files from before the reading store still carry the history
+			ObjectInputStream.GetField fields = inputStream.readFields();
+			id = (String) fields.get("id", null);
+			powerCompany = (PowerCompanyInterface) fields.get("powerCompany", null);
+			pcName = (String) fields.get("pcName", null);
+			broker = (BrokerInterface) fields.get("broker", null);
+			brokerName = (String) fields.get("brokerName", null);
+			switchId = (String) fields.get("switchId", null);
+			switchStep = fields.get("switchStep", SWITCH_STARTED);
 	
-			timer = new Timer();
 			dp = new DataPersistence();
+			
+			// Only older files carry the history - asking for a field the stream lacks throws
+			if( fields.getObjectStreamClass().getField("meterReadings") != null )
+				importReadings(legacyReadings((List<Integer>) fields.get("meterReadings", null)));
 		} catch (Exception e) {
 			e.printStackTrace();
 		} 
 	}
 	
+	/**
+	 * Moves a history loaded from an older save file into the reading store. Older files didn't 
+	 * record when readings were taken, so they're stamped one reading interval apart up to now - 
+	 * the roll-ups then keep them like any other readings, rather than treating them all as 1970.
+	 * 
+	 * @param legacyReadings ReadingBuffer
+	 * @throws RemoteException
+	 */
+	private void importReadings(ReadingBuffer legacyReadings) throws RemoteException {
+		if( legacyReadings == null )
+			return;
+		
+		try {
+			// Already imported on an earlier load
+			int first = readings().total();
+			if( first >= legacyReadings.size() )
+				return;
+			
+			long time = System.currentTimeMillis() - (legacyReadings.size() - first) * READING_INTERVAL;
+			
+			// Carrying on from an interrupted import - keep the times in order
+			if( readings().size() > 0 )
+				time = Math.max(time, readings().getTime(readings().size() - 1) + READING_INTERVAL);
+			
+			for( int i = first; i < legacyReadings.size(); i++ ) {
+				readings().append(time, legacyReadings.get(i));
+				time += READING_INTERVAL;
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to import reading history for meter " + id, e);
+		}
+	}
+	
+	/**
+	 * Copies the boxed history from a Java-serialized save file
+	 * 
+	 * @param legacyReadings List<Integer> : may be null
+	 * @return ReadingBuffer : or null
+	 */
+	private static ReadingBuffer legacyReadings(List<Integer> legacyReadings) {
+		return legacyReadings == null ? null : ReadingBuffer.of(legacyReadings);
+	}
+	
+	/**
+	 * Gets the reading store, opening it on first use
+	 * 
+	 * @return ReadingStore
+	 */
+	private ReadingStore readings() {
+		if( meterReadings == null )
+			meterReadings = dp.getReadingStore(id);
+		return meterReadings;
+	}
+	
+	/**
+	 * Gets the reading history with its roll-up tiers
+	 * 
+	 * @return ReadingHistory
+	 */
+	private ReadingHistory history() {
+		return dp.getReadingHistory(id);
+	}
+	
+	/**
+	 * Gets the usage summary, folding in any readings it hasn't seen yet
+	 * 
+	 * @return UsageSummary
+	 * @throws IOException
+	 */
+	synchronized UsageSummary usage() throws IOException {
+		int dropped = readings().dropped();
+		int stored = readings().total();
+		
+		// The store has been replaced underneath us, or has rolled up readings the summary never 
+		// saw - start again from what's left
+		int summarised = usage == null ? -1 : usageStart + usage.getCount();
+		if( summarised < dropped || summarised > stored ) {
+			usage = new UsageSummary();
+			usageStart = dropped;
+			summarised = dropped;
+		}
+		
+		for( int i = summarised; i < stored; i++ )
+			usage.add(readings().get(i - dropped));
+		return usage;
+	}
+	
+	/**
+	 * Rolls up readings past their retention, making sure the summary has them first
+	 */
+	synchronized void compactHistory() {
+		try {
+			usage();
+			int compacted = history().compact(System.currentTimeMillis());
+			if( compacted > 0 )
+				dp.saveMeter(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Restores the usage summary from saved state (see EntityCodec)
+	 * 
+	 * @param usage UsageSummary
+	 * @param usageStart int : position in the reading store of the first reading in the summary
+	 */
+	void restoreUsage(UsageSummary usage, int usageStart) {
+		this.usage = usage;
+		this.usageStart = usageStart;
+	}
+	
+	/**
+	 * Gets the position in the reading store of the first reading in the summary (for saving)
+	 * 
+	 * @return int
+	 */
+	synchronized int getUsageStart() {
+		return usageStart;
+	}
+	
+	/**
+	 * Gets the timer, starting its thread on first use - idle meters never need one
+	 * 
+	 * @return Timer
+	 */
+	private synchronized Timer timer() {
+		if( timer == null )
+			timer = new Timer();
+		return timer;
+	}
+	
+	/**
+	 * Gets the lock that keeps supplier switches one at a time, creating it on first use
+	 * 
+	 * @return Object
+	 */
+	private synchronized Object switchLock() {
+		if( switchLock == null )
+			switchLock = new Object();
+		return switchLock;
+	}
+	
+	/**
+	 * Gets the offer inbox, creating it on first use
+	 * 
+	 * @return Map<String, Offer>
+	 */
+	private synchronized Map<String, Offer> inbox() {
+		if( offers == null )
+			offers = new LinkedHashMap<String, Offer>();
+		return offers;
+	}
+	
+	/**
+	 * Checks if the meter is sending readings to a power company - it isn't passivated while it is
+	 * 
+	 * @return boolean
+	 */
+	synchronized boolean isReporting() {
+		return powerCompany != null;
+	}
+	
+	/**
+	 * Checks if any offers are waiting for an answer - the meter isn't passivated while they are
+	 * 
+	 * @return boolean
+	 */
+	synchronized boolean hasOffers() {
+		return offers != null && !offers.isEmpty();
+	}
+	
+	/**
+	 * Gets the reference other entities should hold for this meter
+	 * 
+	 * @return MeterInterface
+	 */
+	private MeterInterface self() {
+		return self == null ? this : self;
+	}
+	
+	/**
+	 * Sets the reference other entities should hold for this meter (see MeterActivator)
+	 * 
+	 * @param self MeterInterface
+	 */
+	void setSelf(MeterInterface self) {
+		this.self = self;
+	}
+	
+	/**
+	 * Sets up scheduled (every minute) sending of readings and random alerts
+	 */
+	private void scheduleReadings() {
+		timer().schedule(new SendReadings(), READING_INTERVAL, READING_INTERVAL);
+		long compactInterval = Math.max(1, Long.getLong("meter.compactInterval", DEFAULT_COMPACT_INTERVAL));
+		timer().schedule(new CompactHistory(), compactInterval, compactInterval);
+		Random r = new Random();
+		timer().schedule(new SendAlert() , r.nextInt(300000)+60000);
+	}
+	
+	/**
+	 * Restarts sending readings after the meter has been activated again
+	 */
+	void resume() {
+		if( powerCompany != null )
+			scheduleReadings();
+	}
+	
+	/**
+	 * Saves the meter and releases its timer and reading store so it can be dropped from memory
+	 */
+	synchronized void passivate() {
+		if( timer != null ) {
+			timer.cancel();
+			timer = null;
+		}
+		
+		dp.saveMeter(this);
+		
+		try {
+			if( meterReadings != null )
+				history().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		meterReadings = null;
+		usage = null;
+	}
+	
 	/**
 	 * Runs the meter (command line interface)
 	 */
@@ -86,7 +389,8 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 			print("1. Register with a power company");
 			print("2. Unregister with current power company");
 			print("3. Send request to find a better deal to broker");
-			print("4. Exit\n");
+			print("4. Review offers from your broker");
+			print("5. Exit\n");
 			print("Type a number:");
 			
 			String input = in.nextLine();
@@ -104,7 +408,14 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 					requestBroker();
 					break;
 				case "4":
+					reviewOffers();
+					break;
+					
+				case "5":
 					print("Exiting SmartMeter");
+					// Make sure nothing is left in the write-behind queue
+					dp.scheduleSaveMeter(this);
+					dp.flush();
 					operating = false;
 					break;
 						
@@ -134,8 +445,8 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 			
 		// If not, get a list of companies
 		try {
-			RemoteListInterface<String> companyListRTI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/companyList");
-			List<String> companyList = (ArrayList<String>) companyListRTI.accessList();
+			// Only fetches companies added since we last looked
+			List<String> companyList = DirectoryCache.<String>forName("companyList").list();
 			
 			print("Choose your new power company");
 			
@@ -163,18 +474,15 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 						pcName = companyList.get(selection-1);
 
 						print("Registering with " + pcName);
-						powerCompany = (PowerCompanyInterface) Naming.lookup("rmi://localhost/" + pcName);
+						powerCompany = (PowerCompanyInterface) StubResolver.lookup("rmi://localhost/" + pcName);
 					
-						if( !powerCompany.addCustomer(id, this, getLatestReading()) ) {
+						if( !powerCompany.addCustomer(id, self(), getLatestReading()) ) {
 							print("Oops error. Please try again later.");
 							powerCompany = null;
 							pcName = null;
 						}
 						
-						// Set up scheduled (every 2 minute) sending of readings and random alerts
-						timer.schedule(new SendReadings(), 60000, 60000);
-						Random r = new Random();
-						timer.schedule(new SendAlert() , r.nextInt(300000)+60000);
+						scheduleReadings();
 
 						validInput = true;
 					} else if( selection == companyList.size()+1 ) {
@@ -190,6 +498,7 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 					
 					if( connectionLost(e) ) {
 						// Remove any changes we may have made
+						StubResolver.invalidate(pcName);
 						powerCompany = null;
 						pcName = null;
 						
@@ -214,7 +523,7 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 			}
 		}
 
-		dp.saveMeter(this);
+		dp.scheduleSaveMeter(this);
 	}
 
 	/**
@@ -270,7 +579,7 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 			}
 		}
 		//s2.close();
-		dp.saveMeter(this);
+		dp.scheduleSaveMeter(this);
 	}
 
 	/**
@@ -310,8 +619,7 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 		
 		try {
 			// Get a list of brokers
-			RemoteListInterface<String> brokerListRLI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/brokerList");
-			ArrayList<String> brokerList = (ArrayList<String>) brokerListRLI.accessList();
+			ArrayList<String> brokerList = DirectoryCache.<String>forName("brokerList").list();
 			
 			print("Select a broker");
 				
@@ -336,14 +644,18 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 						
 						// Get the associated broker object
 						brokerName = brokerList.get(selection-1);
-						broker = (BrokerInterface) Naming.lookup("rmi://localhost/" + brokerName);
+						broker = (BrokerInterface) StubResolver.lookup("rmi://localhost/" + brokerName);
 							
 						print("Connecting with " + brokerName);
 							
 						// Contacting broker
-						broker.receiveRequest(id, this);
-						
-						print("Broker contacted - they will get back to you soon!\n");
+						if( broker.receiveRequest(id, self()) ) {
+							print("Broker contacted - they will get back to you soon!\n");
+						} else {
+							print(brokerName + " is too busy to take on new customers right now - please try again later or try another broker.\n");
+							broker = null;
+							brokerName = null;
+						}
 													
 						validInput = true;
 					} else if( selection == brokerList.size()+1 ) {
@@ -357,6 +669,7 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 					print("Bad input - please select a number from the list above.");
 				} catch (RemoteException e) {
 					if( connectionLost(e) ) {
+						StubResolver.invalidate(brokerName);
 						broker = null;
 						brokerName = null;
 						print("Can't connect to the selected broker. Please try again later or try another broker.");
@@ -377,7 +690,7 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 			}
 		}
 		
-		dp.saveMeter(this);
+		dp.scheduleSaveMeter(this);
 	}
 	
 	/**
@@ -412,13 +725,15 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 	}
 	
 	/**
-	 * Get's the reading history of the meter
+	 * Get's the reading history of the meter - older readings only as hourly or daily roll-ups
 	 * 
 	 * @Override
-	 * @return ArrayList<Integer>
+	 * @param brokerName String
+	 * @param resolution int : ReadingHistory.RAW, HOURLY or DAILY
+	 * @return ReadingBuffer
 	 * @throws RemoteException
 	 */
-	public ArrayList<Integer> getHistory(String brokerName) throws RemoteException {
+	public ReadingBuffer getHistory(String brokerName, int resolution) throws RemoteException {
 		// Only the registered broker can send this request
 		if( !this.brokerName.equals(brokerName) )
 			return null;
@@ -431,9 +746,107 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 			e.printStackTrace();
 		}
 		
-		return meterReadings;
+		if( !ReadingHistory.isResolution(resolution) )
+			throw new RemoteException("Unknown history resolution " + resolution);
+		
+		// Only materialized for sending - the meter itself never holds the history on the heap.
+		// Under the meter's lock so a compaction can't move readings between tiers part way through
+		try {
+			synchronized( this ) {
+				return history().getHistory(resolution);
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to read history of meter " + id, e);
+		}
 	}
 
+	/**
+	 * Gets a summary of the readings history - a broker can price tariffs from this without the
+	 * whole history
+	 * 
+	 * @Override
+	 * @param brokerName String
+	 * @return UsageSummary
+	 * @throws RemoteException
+	 */
+	public UsageSummary getUsageSummary(String brokerName) throws RemoteException {
+		// Only the registered broker can send this request
+		if( !brokerName.equals(this.brokerName) )
+			return null;
+		print("Broker " + brokerName + " has requested a summary of our readings. Sending now\n");
+		
+		try {
+			return usage();
+		} catch (IOException e) {
+			throw new RemoteException("Unable to summarise history of meter " + id, e);
+		}
+	}
+
+	/**
+	 * Gets the reading store
+	 * 
+	 * @return ReadingStore
+	 */
+	ReadingStore getReadingStore() {
+		return readings();
+	}
+	
+	/**
+	 * Gets the power company stub (for saving)
+	 * 
+	 * @return PowerCompanyInterface
+	 */
+	PowerCompanyInterface getPowerCompany() {
+		return powerCompany;
+	}
+	
+	/**
+	 * Gets the broker stub (for saving)
+	 * 
+	 * @return BrokerInterface
+	 */
+	BrokerInterface getBroker() {
+		return broker;
+	}
+	
+	/**
+	 * Gets the name of the broker we're in contact with (for saving)
+	 * 
+	 * @return String
+	 */
+	String getBrokerName() {
+		return brokerName;
+	}
+	
+	/**
+	 * Gets the id of the latest supplier switch (for saving)
+	 * 
+	 * @return String
+	 */
+	String getSwitchId() {
+		return switchId;
+	}
+	
+	/**
+	 * Gets how far the latest supplier switch got (for saving)
+	 * 
+	 * @return int
+	 */
+	int getSwitchStep() {
+		return switchStep;
+	}
+	
+	/**
+	 * Restores the latest supplier switch from saved state (see EntityCodec)
+	 * 
+	 * @param switchId String
+	 * @param switchStep int
+	 */
+	void restoreSwitch(String switchId, int switchStep) {
+		this.switchId = switchId;
+		this.switchStep = switchStep;
+	}
+	
 	/**
 	 * Gets the latest reading - unused now
 	 * 
@@ -442,9 +855,37 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 	 * @throws RemoteException
 	 */
 	public int getLatestReading() throws RemoteException {
-		return meterReadings.get(meterReadings.size()-1);
+		try {
+			// Under the meter's lock, like compactHistory
+			synchronized( this ) {
+				return history().latest();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Unable to read latest reading of meter " + id, e);
+		}
 	}	
 	
+	/**
+	 * Re-applies a reading from a reading log written by an older version
+	 * 
+	 * @param index int : position of the reading in the history
+	 * @param reading int
+	 */
+	void replayReading(int index, int reading) {
+		try {
+			// Readings already in the store are skipped. The log has no times - these came after 
+			// any imported history, so they're stamped as of now
+			if( index == readings().total() ) {
+				long time = System.currentTimeMillis();
+				if( readings().size() > 0 )
+					time = Math.max(time, readings().getTime(readings().size() - 1));
+				readings().append(time, reading);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Receives and processes a command from the power company
 	 * 
@@ -472,44 +913,131 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 	}
 	
 	/**
-	 * Receives an offer from the Broker
+	 * Receives an offer from the Broker into the inbox - the customer answers it from the menu
 	 * 
 	 * @Override
-	 * @param name String : Name of Power Company
-	 * @return boolean
+	 * @param offer Offer
+	 * @return boolean : false if the offer has already expired
 	 * @throws RemoteException
 	 */
-	public boolean receiveOffer(String name, String tariff) throws RemoteException  {
+	public boolean deliverOffer(final Offer offer) throws RemoteException  {
+		if( offer.isExpired() )
+			return false;
 		
-		print("The broker has found the best deal for you!");
-			
-		print("Power company: " + name + ". Tariff details are: " + tariff);
-			
-		print("Accept offer? (yes/no) [due to scanner issues it may take 3 or 4 attempts to anwser - keep going until get a valid response]");
-				
-		Scanner s = new Scanner(System.in);
+		synchronized( this ) {
+			inbox().put(offer.getOfferId(), offer);
+		}
 		
-		broker = null;
-		brokerName = null;	
+		print("The broker has found the best deal for you! Choose option 4 to review it.\n");
 		
-		boolean validInput = false;
-		while(!validInput) {
-			String answer = s.nextLine();
-			if( answer.equalsIgnoreCase("yes") ) {
-				//s.close();
-				return true;
-			} else if( answer.equalsIgnoreCase("no") ) {
-				//s.close();
-				return false;
-			} else {
-				print("Bad input - please reply yes or no to the broker's deal");
+		// Drop it if the customer doesn't answer in time
+		timer().schedule(new TimerTask() {
+			public void run() {
+				if( takeOffer(offer.getOfferId()) != null ) {
+					print("The offer from " + offer.getBrokerName() + " has expired.\n");
+					doneWithBroker(offer.getBrokerName());
+				}
 			}
-		}	
-
+		}, new Date(offer.getExpires()));
+		
+		return true;
+	}
+	
+	/**
+	 * Lets the customer answer the offers in the inbox
+	 */
+	private void reviewOffers() {
+		List<Offer> waiting;
+		synchronized( this ) {
+			waiting = new ArrayList<Offer>(inbox().values());
+		}
 		
-		// Pointless as we never leave the while loop but Java disagrees
+		if( waiting.isEmpty() ) {
+			print("You have no offers waiting - your broker will get back to you soon.\n");
+			return;
+		}
+		
+		Scanner s = new Scanner(System.in);
+		for( Offer offer : waiting ) {
+			print("Power company: " + offer.getPowerCompanyName() + ". Tariff details are: " + offer.getTariff());
+			print("Accept offer? (yes/no/later)");
+			
+			boolean validInput = false;
+			while(!validInput) {
+				String answer = s.nextLine();
+				if( answer.equalsIgnoreCase("yes") ) {
+					answerOffer(offer, true);
+					validInput = true;
+				} else if( answer.equalsIgnoreCase("no") ) {
+					answerOffer(offer, false);
+					validInput = true;
+				} else if( answer.equalsIgnoreCase("later") ) {
+					validInput = true;
+				} else {
+					print("Bad input - please reply yes, no or later to the broker's deal");
+				}
+			}
+		}
 		//s.close();
-		return false;
+	}
+	
+	/**
+	 * Sends the customer's answer to an offer back to the broker
+	 * 
+	 * @param offer Offer
+	 * @param accepted boolean
+	 */
+	private void answerOffer(Offer offer, boolean accepted) {
+		if( takeOffer(offer.getOfferId()) == null ) {
+			print("Sorry - that offer has expired.\n");
+			return;
+		}
+		
+		try {
+			BrokerInterface b = (BrokerInterface) StubResolver.lookup("rmi://localhost/" + offer.getBrokerName());
+			if( !b.respondToOffer(offer.getOfferId(), id, accepted) )
+				print("Sorry - that offer has expired.\n");
+			else if( accepted )
+				print("Offer accepted - " + offer.getBrokerName() + " will move you to " + offer.getPowerCompanyName() + ".\n");
+			else
+				print("Offer rejected.\n");
+			
+			doneWithBroker(offer.getBrokerName());
+		} catch (Exception e) {
+			if( connectionLost(e) ) {
+				// Keep the offer so the customer can try again
+				StubResolver.invalidate(offer.getBrokerName());
+				synchronized( this ) {
+					inbox().put(offer.getOfferId(), offer);
+				}
+				print("Can't connect to " + offer.getBrokerName() + " - please try again later.\n");
+			} else {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Removes an offer from the inbox
+	 * 
+	 * @param offerId String
+	 * @return Offer : or null if it has already been answered or has expired
+	 */
+	private synchronized Offer takeOffer(String offerId) {
+		return inbox().remove(offerId);
+	}
+	
+	/**
+	 * Forgets our broker once their offer has been dealt with
+	 * 
+	 * @param name String : the broker the offer came from
+	 */
+	private void doneWithBroker(String name) {
+		if( name.equals(brokerName) ) {
+			broker = null;
+			brokerName = null;
+			dp.scheduleSaveMeter(this);
+		}
 	}
 	
 	/**
@@ -533,18 +1061,115 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 		this.powerCompany = pc;
 		pcName = pc.getName();
 		
-		dp.saveMeter(this);
+		dp.scheduleSaveMeter(this);
 		
 		print("You are now registered with " + pcName + "\n");
 		
-		// Set up scheduled (every 2 minute) sending of readings and random alerts
-		timer.schedule(new SendReadings(), 60000, 60000);
-		Random r = new Random();
-		timer.schedule(new SendAlert() , r.nextInt(300000)+60000);
+		scheduleReadings();
 		
 		return true;
 	}
 
+	/**
+	 * Moves the meter to a new power company in one call (for Broker use). Safe to retry - each
+	 * step is saved as it completes, and a retry skips the steps already done. The meter is only
+	 * locked to record each step, not while the power companies are called.
+	 * 
+	 * @Override
+	 * @param switchId String : identifies the switch - retries must reuse it
+	 * @param newName String : name of the new power company
+	 * @param pc PowerCompanyInterface
+	 * @return boolean : false if the new company wouldn't take us - retrying carries on from there
+	 * @throws RemoteException
+	 */
+	public boolean switchSupplier(String switchId, String newName, PowerCompanyInterface pc) throws RemoteException {
+		synchronized( switchLock() ) {
+			int step;
+			PowerCompanyInterface oldCompany;
+			String oldName;
+			synchronized( this ) {
+				if( !switchId.equals(this.switchId) ) {
+					this.switchId = switchId;
+					switchStep = SWITCH_STARTED;
+				}
+				step = switchStep;
+				oldCompany = powerCompany;
+				oldName = pcName;
+			}
+			
+			if( step < SWITCH_LEFT_OLD ) {
+				if( oldCompany != null && !newName.equals(oldName) )
+					leavePowerCompany(oldCompany, oldName);
+				switchStepDone(SWITCH_LEFT_OLD);
+			}
+			
+			if( step < SWITCH_JOINED_NEW ) {
+				if( !pc.addCustomer(id, self(), getLatestReading()) ) {
+					print(newName + " couldn't take you on - the move will be retried.\n");
+					return false;
+				}
+				switchStepDone(SWITCH_JOINED_NEW);
+			}
+			
+			boolean hadPowerCompany;
+			synchronized( this ) {
+				if( switchStep >= SWITCH_DONE )
+					return true;
+				
+				// Readings are already scheduled if we had a company before
+				hadPowerCompany = powerCompany != null;
+				powerCompany = pc;
+				pcName = newName;
+				switchStepDone(SWITCH_DONE);
+			}
+			
+			print("You are now registered with " + newName + "\n");
+			
+			if( !hadPowerCompany )
+				scheduleReadings();
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Unregisters from the current power company as part of a switch
+	 * 
+	 * @param company PowerCompanyInterface
+	 * @param name String : name of the company
+	 * @throws RemoteException
+	 */
+	private void leavePowerCompany(PowerCompanyInterface company, String name) throws RemoteException {
+		try {
+			company.removeCustomer(id);
+		} catch (RemoteException e) {
+			if( !connectionLost(e) )
+				throw e;
+			
+			// Our stub may be stale - fetch it again and retry once
+			StubResolver.invalidate(name);
+			try {
+				company = (PowerCompanyInterface) StubResolver.lookup("rmi://localhost/" + name);
+			} catch (NotBoundException e1) {
+				// The company has gone - nothing to leave
+				return;
+			} catch (MalformedURLException e1) {
+				throw e;
+			}
+			company.removeCustomer(id);
+		}
+	}
+	
+	/**
+	 * Records that a step of the current switch has completed
+	 * 
+	 * @param step int
+	 */
+	private synchronized void switchStepDone(int step) {
+		switchStep = step;
+		dp.saveMeter(this);
+	}
+
 	/**
 	 * Getter for pcName
 	 * 
@@ -567,7 +1192,9 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 		// Keep trying till no more errors!
 		while( !connected ) { 
 			try {
-				PowerCompanyInterface pc = (PowerCompanyInterface) Naming.lookup(pcName);
+				// Drop the stub that failed and look it up again
+				StubResolver.invalidate(pcName);
+				PowerCompanyInterface pc = (PowerCompanyInterface) StubResolver.lookup(pcName);
 				pc.ping();
 				powerCompany = pc;
 				
@@ -595,7 +1222,8 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 		// Keep trying till no more errors!
 		while( !connected ) { 
 			try {
-				BrokerInterface b = (BrokerInterface) Naming.lookup(brokerName);
+				StubResolver.invalidate(brokerName);
+				BrokerInterface b = (BrokerInterface) StubResolver.lookup(brokerName);
 				b.ping();
 				broker = b;
 				
@@ -622,8 +1250,8 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 		
 		while( !connected ) { 
 			try {
-				RemoteListInterface<String> companyListRTI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/companyList");
-				companyListRTI.accessList();
+				// Just a liveness check - no need for the list itself
+				DirectoryCache.forName("companyList").ping();
 				print("Connection re-established to central server - restarting current process.");	
 				connected = true;
 			} catch (Exception e) {
@@ -700,9 +1328,18 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 				// Make a new reading
 				Random r = new Random();
 				int increaseBy = r.nextInt(500);
-				newReading = meterReadings.get(meterReadings.size()-1) + increaseBy;
-				
-				meterReadings.add(newReading);
+				try {
+					synchronized( Meter.this ) {
+						newReading = history().latest() + increaseBy;
+						
+						// The store is itself an append-only log, so this is the only write needed
+						readings().append(System.currentTimeMillis(), newReading);
+						usage();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
 			}
 			
 			// Send new reading
@@ -718,12 +1355,26 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 				// If we lose connection, try and get it again from the server
 				if( connectionLost(e) ) {
 					reconnectPowerCompany();
-					timer.schedule(new SendReadings(newReading), 0);
+					timer().schedule(new SendReadings(newReading), 0);
 				} else {
 					e.printStackTrace();
 				}
 			}
-			dp.saveMeter(Meter.this);
+		}
+	}
+	
+	/**
+	 * Internal class representing the task of rolling up old readings
+	 */
+	class CompactHistory extends TimerTask {
+		
+		/**
+		 * The main method of the task
+		 * 
+		 * @Override
+		 */
+		public void run() {
+			compactHistory();
 		}
 	}
 	
@@ -782,14 +1433,14 @@ public class Meter extends UnicastRemoteObject implements MeterInterface {
 				if( connectionLost(e) ) {
 					reconnectPowerCompany();
 					// No delay on this - try again straight away
-					timer.schedule(new SendAlert(alert), 0);
+					timer().schedule(new SendAlert(alert), 0);
 				} else {
 					e.printStackTrace();
 				}
 			}
 			
 			// Randomly schedule a new alert
-			timer.schedule(new SendAlert() , r.nextInt(300000)+60000);
+			timer().schedule(new SendAlert() , r.nextInt(300000)+60000);
 		}
 	}
 }
\ No newline at end of file
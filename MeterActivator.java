@@ -0,0 +1,189 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Activates meters on demand and passivates idle ones.
+ *
+ * Each saved meter is bound as a LazyMeter, which costs one small exported object and no timer
+ * thread. The Meter is loaded from DataPersistence on its first remote call and kept in an LRU
+ * resident set - once the set is full, the least recently used meters are saved and dropped.
+ * Used by MeterServer when started with --restore-all --lazy.
+ */
+public class MeterActivator {
+
+	public static final String FLAG = "--lazy";
+
+	// Meters kept in memory at once - override with -Dmeter.residentSize=n
+	public static final int DEFAULT_RESIDENT_SIZE = 1000;
+
+	private DataPersistence dp;
+	private int residentSize;
+
+	// Resident meters, least recently used first
+	private LinkedHashMap<String, LazyMeter> resident;
+
+	// Meters sending readings - kept in memory outside the LRU so their timers keep running
+	private Map<String, LazyMeter> reporting = new HashMap<String, LazyMeter>();
+
+	private int activations;
+	private int passivations;
+
+	/**
+	 * Constructor
+	 *
+	 * @param dp DataPersistence
+	 */
+	public MeterActivator(DataPersistence dp) {
+		this.dp = dp;
+		this.residentSize = Math.max(1, Integer.getInteger("meter.residentSize", DEFAULT_RESIDENT_SIZE));
+		this.resident = new LinkedHashMap<String, LazyMeter>(16, 0.75f, true);
+	}
+
+	/**
+	 * Checks if the command line asked for lazy activation
+	 *
+	 * @param args String[]
+	 * @return boolean
+	 */
+	public static boolean requested(String[] args) {
+		if( args == null )
+			return false;
+		for( String arg : args ) {
+			if( FLAG.equals(arg) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the stand-in for a saved meter without loading it
+	 *
+	 * @param id String
+	 * @return LazyMeter
+	 * @throws RemoteException
+	 */
+	public LazyMeter stubFor(String id) throws RemoteException {
+		return new LazyMeter(id, this);
+	}
+
+	/**
+	 * Loads a meter for its stand-in
+	 *
+	 * @param id String
+	 * @param lazy LazyMeter
+	 * @return Meter
+	 * @throws RemoteException
+	 */
+	Meter load(String id, LazyMeter lazy) throws RemoteException {
+		Meter m = dp.meterExists(id) ? dp.getMeter(id + ".met") : null;
+		if( m == null )
+			throw new RemoteException("Meter " + id + " could not be activated");
+
+		// Callers only ever talk to the stand-in
+		try {
+			UnicastRemoteObject.unexportObject(m, true);
+		} catch (NoSuchObjectException e) {
+			// Not exported - nothing to do
+		}
+		m.setSelf(lazy);
+		m.resume();
+
+		synchronized( this ) {
+			activations++;
+		}
+		return m;
+	}
+
+	/**
+	 * Saves a meter and releases its resources
+	 *
+	 * @param m Meter
+	 */
+	void unload(Meter m) {
+		m.passivate();
+		synchronized( this ) {
+			passivations++;
+		}
+	}
+
+	/**
+	 * Records a call to a meter, passivating the least recently used ones if there are too many
+	 *
+	 * @param lazy LazyMeter
+	 */
+	void touched(LazyMeter lazy) {
+		List<LazyMeter> evicted = new ArrayList<LazyMeter>();
+		synchronized( this ) {
+			reporting.remove(lazy.id());
+			resident.put(lazy.id(), lazy);
+
+			Iterator<LazyMeter> it = resident.values().iterator();
+			while( resident.size() > residentSize && it.hasNext() ) {
+				LazyMeter lru = it.next();
+				if( lru == lazy )
+					continue;
+				it.remove();
+				evicted.add(lru);
+			}
+		}
+
+		// Outside our lock - passivating saves the meter
+		for( LazyMeter lru : evicted ) {
+			if( !lru.passivate() ) {
+				boolean pinned = lru.isReporting();
+				synchronized( this ) {
+					if( resident.containsKey(lru.id()) )
+						continue;
+					if( pinned ) {
+						// Stays loaded until it stops reporting and is next called
+						reporting.put(lru.id(), lru);
+					} else {
+						// Busy - keep it resident and try again next time
+						resident.put(lru.id(), lru);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Passivates every resident meter (on shutdown)
+	 */
+	public void passivateAll() {
+		List<LazyMeter> all;
+		synchronized( this ) {
+			all = new ArrayList<LazyMeter>(resident.values());
+			all.addAll(reporting.values());
+			resident.clear();
+			reporting.clear();
+		}
+		for( LazyMeter lazy : all )
+			lazy.unload();
+	}
+
+	/**
+	 * Gets the number of meters in memory
+	 *
+	 * @return int
+	 */
+	public synchronized int residentCount() {
+		return resident.size() + reporting.size();
+	}
+
+	/**
+	 * Describes activity so far
+	 *
+	 * @return String
+	 */
+	public synchronized String stats() {
+		return "resident=" + resident.size() + "/" + residentSize + " reporting=" + reporting.size() + " activations=" + activations
+				+ " passivations=" + passivations;
+	}
+}
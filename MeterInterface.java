@@ -1,6 +1,5 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.ArrayList;
 
 /**
  * Remote interface for the Meter class
@@ -8,14 +7,16 @@ import java.util.ArrayList;
 public interface MeterInterface extends Remote {
 	
 	public boolean receiveCommand(int command, String source) throws RemoteException;
-	public boolean receiveOffer(String name, String tariff) throws RemoteException;
+	public boolean deliverOffer(Offer offer) throws RemoteException;
 	
 	public String getId() throws RemoteException;	
-	public ArrayList<Integer> getHistory(String brokerName) throws RemoteException;
+	public ReadingBuffer getHistory(String brokerName, int resolution) throws RemoteException;
+	public UsageSummary getUsageSummary(String brokerName) throws RemoteException;
 	public int getLatestReading() throws RemoteException;	
 	public String getPowerCompanyName() throws RemoteException;
 	
 	public boolean setPowerCompany(PowerCompanyInterface pc) throws RemoteException;
+	public boolean switchSupplier(String switchId, String pcName, PowerCompanyInterface pc) throws RemoteException;
 
 	public boolean hasPowerCompany() throws RemoteException;
 	
@@ -18,8 +18,18 @@ public class MeterServer {
 	 * @param args String[]
 	 */
 	public static void main(String[] args) {
+		StubResolver.limitResponseTime();
 		DataPersistence dp = new DataPersistence();
 		
+		// Non-interactive restore of everything saved
+		if( BulkRestore.requested(args) ) {
+			if( MeterActivator.requested(args) )
+				activateAll(dp);
+			else
+				restoreAll(dp);
+			return;
+		}
+		
 		// Check for persistent data
 		if( dp.meterSaveDataExists() ) {
 			
@@ -55,6 +65,11 @@ public class MeterServer {
 								Meter m = dp.getMeter(id);
 								id = id.substring(0, id.length()-4);
 								
+								if( m == null ) {
+									System.err.println("Saved meter " + id + " is corrupt and has no usable backup - please select another.");
+									continue;
+								}
+								
 								// Rebind it and send to central server
 								try {
 									Naming.rebind(id, m);
@@ -119,6 +134,63 @@ public class MeterServer {
 		}
 	}
 
+	/**
+	 * Restores every saved meter in parallel without prompting (--restore-all)
+	 * 
+	 * @param dp DataPersistence
+	 */
+	public static void restoreAll(final DataPersistence dp) {
+		new BulkRestore<Meter>("meter") {
+			protected List<String> savedNames() {
+				return dp.getMeterNames();
+			}
+			
+			protected Meter load(String fileName) {
+				return dp.getMeter(fileName);
+			}
+			
+			protected void register(List<String> names) throws Exception {
+				addAllToList(names);
+			}
+		}.run();
+	}
+
+	/**
+	 * Binds a stand-in for every saved meter, loading each one only when it's first called (--lazy)
+	 * 
+	 * @param dp DataPersistence
+	 */
+	public static void activateAll(final DataPersistence dp) {
+		final MeterActivator activator = new MeterActivator(dp);
+		
+		// Save whatever is still resident on the way out
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				activator.passivateAll();
+				System.out.println("[Activator] " + activator.stats());
+			}
+		});
+		
+		new BulkRestore<LazyMeter>("meter") {
+			protected List<String> savedNames() {
+				return dp.getMeterNames();
+			}
+			
+			protected LazyMeter load(String fileName) {
+				try {
+					return activator.stubFor(nameOf(fileName));
+				} catch (RemoteException e) {
+					e.printStackTrace();
+					return null;
+				}
+			}
+			
+			protected void register(List<String> names) throws Exception {
+				addAllToList(names);
+			}
+		}.run();
+	}
+
 	/**
 	 * Adds a meter to the remote list
 	 * 
@@ -129,8 +201,24 @@ public class MeterServer {
 	 */
 	private static void addToList(String name) throws MalformedURLException, RemoteException, NotBoundException {
 		System.out.println("Providing meter details to the central server");
-		RemoteListInterface<String> meterListRLI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/meterList");
+		RemoteListInterface<String> meterListRLI = (RemoteListInterface<String>) StubResolver.lookup("rmi://localhost/meterList");
 		meterListRLI.addObject(name);
+		LeaseRenewer.forList("meterList").add(name);
 
 	}
-}
+	
+	/**
+	 * Adds many meters to the remote list in a single call
+	 * 
+	 * @param names List<String>
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private static void addAllToList(List<String> names) throws MalformedURLException, RemoteException, NotBoundException {
+		System.out.println("Providing details of " + names.size() + " meters to the central server");
+		RemoteListInterface<String> meterListRLI = (RemoteListInterface<String>) StubResolver.lookup("rmi://localhost/meterList");
+		meterListRLI.addObjects(names);
+		LeaseRenewer.forList("meterList").addAll(names);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+import java.io.Serializable;
+
+/**
+ * Helper class, a deal found by a broker waiting in a meter's inbox for the customer to answer
+ */
+public class Offer implements Serializable {
+
+	private static final long serialVersionUID = -6207310428817529374L;
+
+	private String offerId;
+	private String brokerName;
+	private String pcName;
+	private String tariff;
+	private long expires;
+
+	/**
+	 * Constructor
+	 *
+	 * @param offerId String : unique per broker, quoted back when answering
+	 * @param brokerName String
+	 * @param pcName String : the power company being offered
+	 * @param tariff String : the tariff details
+	 * @param expires long : when the offer lapses (ms since epoch)
+	 */
+	public Offer(String offerId, String brokerName, String pcName, String tariff, long expires) {
+		this.offerId = offerId;
+		this.brokerName = brokerName;
+		this.pcName = pcName;
+		this.tariff = tariff;
+		this.expires = expires;
+	}
+
+	/**
+	 * Accessor for the offerId variable
+	 *
+	 * @return String
+	 */
+	public String getOfferId() {
+		return offerId;
+	}
+
+	/**
+	 * Accessor for the brokerName variable
+	 *
+	 * @return String
+	 */
+	public String getBrokerName() {
+		return brokerName;
+	}
+
+	/**
+	 * Accessor for the pcName variable
+	 *
+	 * @return String
+	 */
+	public String getPowerCompanyName() {
+		return pcName;
+	}
+
+	/**
+	 * Accessor for the tariff variable
+	 *
+	 * @return String
+	 */
+	public String getTariff() {
+		return tariff;
+	}
+
+	/**
+	 * Accessor for the expires variable
+	 *
+	 * @return long
+	 */
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * Checks if the offer has lapsed
+	 *
+	 * @return boolean
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() >= expires;
+	}
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind persistence. Entities mark themselves dirty and a background thread writes each
+ * dirty entity once per flush, so bursts of updates turn into a single write and RMI handlers
+ * never wait on the disk.
+ */
+public class PersistenceScheduler {
+
+	// Defaults - can be overridden with -Dpersistence.flushInterval=ms and -Dpersistence.batchSize=n
+	public static final long DEFAULT_FLUSH_INTERVAL = 5000;
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private static PersistenceScheduler instance;
+
+	// Dirty entities mapped to the task that saves them, in the order they were first marked
+	private final Map<String, Runnable> dirty = new LinkedHashMap<String, Runnable>();
+	private final Object flushLock = new Object();
+
+	private final ScheduledExecutorService flusher;
+	private final int batchSize;
+
+	/**
+	 * Constructor
+	 *
+	 * @param flushInterval long : milliseconds between background flushes
+	 * @param batchSize int : number of dirty entities which triggers an early flush
+	 */
+	public PersistenceScheduler(long flushInterval, int batchSize) {
+		this.batchSize = batchSize;
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "persistence-flusher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+		// Don't lose pending writes when the JVM exits
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Gets the scheduler shared by every entity in this JVM
+	 *
+	 * @return PersistenceScheduler
+	 */
+	public static synchronized PersistenceScheduler getInstance() {
+		if( instance == null ) {
+			instance = new PersistenceScheduler(Long.getLong("persistence.flushInterval", DEFAULT_FLUSH_INTERVAL),
+					Integer.getInteger("persistence.batchSize", DEFAULT_BATCH_SIZE));
+		}
+		return instance;
+	}
+
+	/**
+	 * Marks an entity as needing to be saved. Marking an entity that is already dirty
+	 * replaces its save task rather than queueing a second write.
+	 *
+	 * @param key String : unique key for the entity
+	 * @param save Runnable : writes the entity to disk - throws if it couldn't, and is run again next flush
+	 */
+	public void markDirty(String key, Runnable save) {
+		boolean flushNow;
+		synchronized( dirty ) {
+			dirty.put(key, save);
+			flushNow = dirty.size() >= batchSize;
+		}
+
+		if( flushNow ) {
+			flusher.execute(new Runnable() {
+				public void run() {
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Checks if an entity has unsaved changes
+	 *
+	 * @param key String
+	 * @return boolean
+	 */
+	public boolean isDirty(String key) {
+		synchronized( dirty ) {
+			return dirty.containsKey(key);
+		}
+	}
+
+	/**
+	 * Gets the number of entities waiting to be saved
+	 *
+	 * @return int
+	 */
+	public int pending() {
+		synchronized( dirty ) {
+			return dirty.size();
+		}
+	}
+
+	/**
+	 * Writes every dirty entity now. Called by the background thread and on shutdown.
+	 */
+	public void flush() {
+		synchronized( flushLock ) {
+			// Everything written in this flush shares one round of fsyncs
+			GroupCommit.getInstance().begin();
+			try {
+				flushDirty();
+			} finally {
+				GroupCommit.getInstance().end();
+			}
+		}
+	}
+
+	/**
+	 * Runs the save task of every dirty entity
+	 */
+	private void flushDirty() {
+		List<String> keys;
+		List<Runnable> saves;
+		synchronized( dirty ) {
+			keys = new ArrayList<String>(dirty.keySet());
+			saves = new ArrayList<Runnable>(dirty.values());
+			dirty.clear();
+		}
+
+		for( int i = 0; i < saves.size(); i++ ) {
+			try {
+				saves.get(i).run();
+			} catch (Exception e) {
+				e.printStackTrace();
+
+				// Keep it dirty so the next flush tries again, unless it's been re-marked since
+				synchronized( dirty ) {
+					if( !dirty.containsKey(keys.get(i)) )
+						dirty.put(keys.get(i), saves.get(i));
+				}
+			}
+		}
+	}
+}
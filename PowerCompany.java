@@ -1,14 +1,13 @@
 import java.io.ObjectInputStream;
-import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Power Company object
@@ -52,15 +51,36 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 			this.tariff = new Tariff(dayCost, r.nextInt(dayCost)+1, r.nextInt(30)/100, r.nextInt(500)+100);
 		}
 		
-		// Set up variables
-		customers = new HashMap<String,MeterInterface>();
-		readings = new HashMap<String, Integer>();
+		// Set up variables - concurrent as they're saved on the persistence thread while RMI threads update them
+		customers = new ConcurrentHashMap<String,MeterInterface>();
+		readings = new ConcurrentHashMap<String, Integer>();
 		
 		timer = new Timer();		
 		dp = new DataPersistence();
 		dp.savePowerCompany(this);
 	}
 
+	/**
+	 * Constructor - restores a power company from saved state (see EntityCodec)
+	 * 
+	 * @param name String
+	 * @param tariff Tariff
+	 * @param customers Map<String, MeterInterface>
+	 * @param readings Map<String, Integer>
+	 * @throws RemoteException
+	 */
+	PowerCompany(String name, Tariff tariff, Map<String, MeterInterface> customers, Map<String, Integer> readings) throws RemoteException {
+		super();
+		
+		this.name = name;
+		this.tariff = tariff;
+		this.customers = new ConcurrentHashMap<String, MeterInterface>(customers);
+		this.readings = new ConcurrentHashMap<String, Integer>(readings);
+		
+		timer = new Timer();
+		dp = new DataPersistence();
+	}
+
 	/**
 	 * Handles deserialization of the object
 	 * 
@@ -70,6 +90,8 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 	private void readObject(ObjectInputStream inputStream) {
 		try {
 			inputStream.defaultReadObject();
+			customers = new ConcurrentHashMap<String, MeterInterface>(customers);
+			readings = new ConcurrentHashMap<String, Integer>(readings);
 			
 			timer = new Timer();
 			dp = new DataPersistence();
@@ -94,7 +116,7 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 			
 		print("New customer registered with meter id " + id + ".\n");	
 			
-		dp.savePowerCompany(this);
+		dp.scheduleSavePowerCompany(this);
 			
 		return true;	
 	}
@@ -112,7 +134,7 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 		readings.remove(id);
 		
 		print(name + " has lost customer " + id);
-		dp.savePowerCompany(this);
+		dp.scheduleSavePowerCompany(this);
 	
 		return true;
 	}
@@ -145,7 +167,7 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 		readings.put(id, newReading);
 		
 		print("Added a new reading for meter " + id + " of " + newReading);
-		dp.savePowerCompany(this);
+		dp.logPowerCompanyReading(this, id, newReading);
 		
 		Random r = new Random();
 		int pay = r.nextInt(10);
@@ -157,6 +179,18 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 		return newReading - prevReading;
 	}
 
+	/**
+	 * Re-applies a reading from the reading log after loading a snapshot
+	 * 
+	 * @param id String
+	 * @param reading int
+	 */
+	void replayReading(String id, int reading) {
+		// Ignore readings for customers who have since left
+		if( readings.containsKey(id) )
+			readings.put(id, reading);
+	}
+
 	/**
 	 * Receives an alert from a meter
 	 * 
@@ -222,6 +256,39 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 		return tariff;
 	}
 	
+	/**
+	 * Publishes our tariff to the central server's catalog so brokers don't have to ask us
+	 */
+	void publishTariff() {
+		try {
+			TariffCatalogInterface catalog = (TariffCatalogInterface) StubResolver.lookup("rmi://localhost/tariffCatalog");
+			catalog.publish(name, tariff);
+		} catch (Exception e) {
+			StubResolver.failed("tariffCatalog", e);
+			
+			// Brokers fall back to asking us directly
+			print("Unable to publish our tariff to the central server's catalog.");
+		}
+	}
+	
+	/**
+	 * Gets the customer stubs (for saving)
+	 * 
+	 * @return Map<String, MeterInterface>
+	 */
+	Map<String, MeterInterface> getCustomers() {
+		return customers;
+	}
+	
+	/**
+	 * Gets the latest reading of each customer (for saving)
+	 * 
+	 * @return Map<String, Integer>
+	 */
+	Map<String, Integer> getReadings() {
+		return readings;
+	}
+	
 	/**
 	 * Prints output to the command line, but prepends with the date and power company name
 	 * @param s String
@@ -243,7 +310,9 @@ public class PowerCompany extends UnicastRemoteObject implements PowerCompanyInt
 		
 		while( !connected ) { 
 			try {
-				MeterInterface m = (MeterInterface) Naming.lookup("rmi://localhost/" + id);
+				// Drop the stub that failed and look it up again
+				StubResolver.invalidate(id);
+				MeterInterface m = (MeterInterface) StubResolver.lookup(id);
 				m.ping();
 				
 				// Update our records
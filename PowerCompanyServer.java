@@ -2,7 +2,9 @@ import java.net.MalformedURLException;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -10,8 +12,15 @@ import java.util.Scanner;
  */
 public class PowerCompanyServer {
 	public static void main(String[] args) {
+		StubResolver.limitResponseTime();
 		DataPersistence dp = new DataPersistence();
 		
+		// Non-interactive restore of everything saved
+		if( BulkRestore.requested(args) ) {
+			restoreAll(dp);
+			return;
+		}
+		
 		// If data exists
 		if( dp.saveDataExists() ) {
 			System.out.println("Load a power company (a) or create a new one (b)");
@@ -48,12 +57,17 @@ public class PowerCompanyServer {
 								
 								// Reload the object
 								PowerCompany pc = dp.getPowerCompany(name);
+								if( pc == null ) {
+									System.err.println("Saved power company " + name + " is corrupt and has no usable backup - please select another.");
+									continue;
+								}
 								
 								// Rebind it and send to central server
 								try {
 									name = name.substring(0, name.length()-3);
 									Naming.rebind(name, pc);
 									addToList(name);
+									pc.publishTariff();
 								} catch (Exception e) {
 									// Connection error
 									System.err.println("Sorry an error has occured - please check your connection and the server's status");
@@ -96,17 +110,77 @@ public class PowerCompanyServer {
 		//s.close();
 		
 		try {
-			Naming.rebind( name, new PowerCompany(name));
+			PowerCompany pc = new PowerCompany(name);
+			Naming.rebind( name, pc);
 			addToList(name);
+			pc.publishTariff();
 		} catch (Exception e) {
 			// Connection error
 			System.err.println("Sorry an error has occured - please check your connection and the server's status");
 		}
 	}
 
+	/**
+	 * Restores every saved power company in parallel without prompting (--restore-all)
+	 * 
+	 * @param dp DataPersistence
+	 */
+	public static void restoreAll(final DataPersistence dp) {
+		List<PowerCompany> restored = new BulkRestore<PowerCompany>("power company") {
+			protected List<String> savedNames() {
+				return dp.getPowerCompanyNames();
+			}
+			
+			protected PowerCompany load(String fileName) {
+				return dp.getPowerCompany(fileName);
+			}
+			
+			protected void register(List<String> names) throws Exception {
+				addAllToList(names);
+			}
+		}.run();
+		
+		publishAll(restored);
+	}
+	
+	/**
+	 * Publishes many power companies' tariffs to the central server's catalog in a single call
+	 * 
+	 * @param companies List<PowerCompany>
+	 */
+	private static void publishAll(List<PowerCompany> companies) {
+		try {
+			Map<String, Tariff> tariffs = new HashMap<String, Tariff>();
+			for( PowerCompany pc : companies )
+				tariffs.put(pc.getName(), pc.getTariffDetails());
+			
+			TariffCatalogInterface catalog = (TariffCatalogInterface) StubResolver.lookup("rmi://localhost/tariffCatalog");
+			catalog.publishAll(tariffs);
+		} catch (Exception e) {
+			StubResolver.failed("tariffCatalog", e);
+			System.err.println("Unable to publish tariffs to the central server's catalog - brokers will ask each company directly");
+		}
+	}
+
 	private static void addToList(String name) throws MalformedURLException, RemoteException, NotBoundException {
 		System.out.println("Providing power company details to the central server");
-		RemoteListInterface<String> powerCompanyListRLI = (RemoteListInterface<String>) Naming.lookup("rmi://localhost/companyList");
-		powerCompanyListRLI.addObject(name);		
+		RemoteListInterface<String> powerCompanyListRLI = (RemoteListInterface<String>) StubResolver.lookup("rmi://localhost/companyList");
+		powerCompanyListRLI.addObject(name);
+		LeaseRenewer.forList("companyList").add(name);
+	}
+	
+	/**
+	 * Adds many power companies to the remote list in a single call
+	 * 
+	 * @param names List<String>
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private static void addAllToList(List<String> names) throws MalformedURLException, RemoteException, NotBoundException {
+		System.out.println("Providing details of " + names.size() + " power companies to the central server");
+		RemoteListInterface<String> powerCompanyListRLI = (RemoteListInterface<String>) StubResolver.lookup("rmi://localhost/companyList");
+		powerCompanyListRLI.addObjects(names);
+		LeaseRenewer.forList("companyList").addAll(names);
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares quoting a burst of customers one request at a time - each fetching the tariffs and
+ * pricing them on a broker worker - against the batching QuoteEngine. Fetching the tariffs is
+ * simulated with a fixed delay standing in for the round trips to the catalog and companies.
+ *
+ * Usage: java QuoteBenchmark [customers] [companies] [fetchMs] [workers]
+ */
+public class QuoteBenchmark {
+
+	private static final int[] THRESHOLDS = { 100, 200, 300, 400, 500 };
+
+	public static void main(String[] args) throws Exception {
+		int customerCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int companyCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		final long fetchMs = args.length > 2 ? Long.parseLong(args[2]) : 5;
+		int workerCount = args.length > 3 ? Integer.parseInt(args[3]) : Broker.DEFAULT_WORKERS;
+
+		Random r = new Random(42);
+
+		final Map<String, Tariff> tariffs = new HashMap<String, Tariff>();
+		final List<String> companies = new ArrayList<String>();
+		for( int i = 0; i < companyCount; i++ ) {
+			String company = "Company_" + i;
+			companies.add(company);
+			tariffs.put(company, new Tariff(5 + r.nextInt(30), 2 + r.nextInt(15), r.nextInt(3), THRESHOLDS[r.nextInt(THRESHOLDS.length)]));
+		}
+
+		final Map<String, UsageSummary> customers = new HashMap<String, UsageSummary>();
+		for( int i = 0; i < customerCount; i++ ) {
+			UsageSummary usage = new UsageSummary();
+			int scale = 50 + r.nextInt(1000);
+			for( int j = 0; j < 500; j++ )
+				usage.add(r.nextInt(scale));
+			customers.put("meter_" + i, usage);
+		}
+
+		System.out.println("customers=" + customerCount + " companies=" + companyCount + " fetch=" + fetchMs + "ms workers=" + workerCount);
+
+		Map<String, Long> lowest = new ConcurrentHashMap<String, Long>();
+		Map<String, String> chosen = new ConcurrentHashMap<String, String>();
+
+		// Warm up both paths
+		perRequest(customers, companies, tariffs, 0, workerCount, lowest);
+		batched(customers, tariffs, 0, chosen);
+
+		long perRequest = perRequest(customers, companies, tariffs, fetchMs, workerCount, lowest);
+		long batched = batched(customers, tariffs, fetchMs, chosen);
+
+		int mismatches = 0;
+		for( Map.Entry<String, UsageSummary> customer : customers.entrySet() ) {
+			String company = chosen.get(customer.getKey());
+			if( company == null || tariffs.get(company).price(customer.getValue()) != lowest.get(customer.getKey()) )
+				mismatches++;
+		}
+
+		System.out.println(String.format("%-12s %12s %12s", "path", "time(ms)", "quotes/s"));
+		System.out.println(String.format("%-12s %12d %12d", "per-request", perRequest / 1000000, rate(customerCount, perRequest)));
+		System.out.println(String.format("%-12s %12d %12d", "batched", batched / 1000000, rate(customerCount, batched)));
+		System.out.println(mismatches == 0 ? "batched quotes agree with per-request quotes" : mismatches + " quotes disagree!");
+		System.exit(0);
+	}
+
+	/**
+	 * Each customer fetches the tariffs and prices every one of them on a fixed pool of workers
+	 */
+	private static long perRequest(Map<String, UsageSummary> customers, final List<String> companies,
+			final Map<String, Tariff> tariffs, final long fetchMs, int workerCount, final Map<String, Long> lowest)
+			throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+		final AtomicInteger quoted = new AtomicInteger();
+
+		long start = System.nanoTime();
+		for( final Map.Entry<String, UsageSummary> customer : customers.entrySet() ) {
+			workers.execute(new Runnable() {
+				public void run() {
+					UsageSummary usage = customer.getValue();
+					Map<String, Tariff> fetched = fetch(tariffs, fetchMs);
+
+					long best = Long.MAX_VALUE;
+					for( String company : companies ) {
+						long total = fetched.get(company).price(usage);
+						if( total < best )
+							best = total;
+					}
+					lowest.put(customer.getKey(), best);
+					quoted.incrementAndGet();
+				}
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(1, TimeUnit.HOURS);
+		long time = System.nanoTime() - start;
+
+		if( quoted.get() != customers.size() )
+			System.err.println("Only " + quoted.get() + " of " + customers.size() + " customers quoted");
+		return time;
+	}
+
+	/**
+	 * Every customer goes through the quote engine
+	 */
+	private static long batched(Map<String, UsageSummary> customers, final Map<String, Tariff> tariffs,
+			final long fetchMs, final Map<String, String> chosen) throws Exception {
+		final CountDownLatch done = new CountDownLatch(customers.size());
+		QuoteEngine engine = new QuoteEngine("benchmark", null) {
+			protected Map<String, Tariff> fetchTariffs() {
+				return fetch(tariffs, fetchMs);
+			}
+
+			protected void send(Map<String, String> best) {
+				for( Map.Entry<String, String> quote : best.entrySet() ) {
+					if( quote.getValue() != null )
+						chosen.put(quote.getKey(), quote.getValue());
+					done.countDown();
+				}
+			}
+		};
+
+		long start = System.nanoTime();
+		for( Map.Entry<String, UsageSummary> customer : customers.entrySet() )
+			engine.submit(customer.getKey(), customer.getValue());
+		done.await();
+		long time = System.nanoTime() - start;
+
+		engine.shutdown();
+		return time;
+	}
+
+	/**
+	 * Stands in for fetching the tariffs from the catalog and the companies
+	 */
+	private static Map<String, Tariff> fetch(Map<String, Tariff> tariffs, long fetchMs) {
+		if( fetchMs > 0 ) {
+			try {
+				Thread.sleep(fetchMs);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		return new HashMap<String, Tariff>(tariffs);
+	}
+
+	private static long rate(int count, long nanos) {
+		return nanos == 0 ? count : (long) (count / (nanos / 1e9));
+	}
+}
@@ -0,0 +1,166 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the cheapest company for a usage summary on a set of tariffs.
+ *
+ * Quotes are keyed on the summary's fingerprint and the version of the tariffs quoted on, so a
+ * repeat quote - or a retry after reconnecting - is answered without pricing anything, and a new
+ * reading or a changed tariff simply misses. Tariffs from the catalog are versioned by the
+ * catalog itself; only tariffs asked for directly need hashing. Pricing is deterministic (see Tariff.price), so a
+ * cached quote is always the one that would be calculated again. The least recently used quotes
+ * are dropped once the cache is full.
+ */
+public class QuoteCache {
+
+	// Quotes kept at once - override with -Dbroker.quoteCacheSize=n
+	public static final int DEFAULT_SIZE = 10000;
+
+	private final int size;
+
+	// Cheapest company by summary and tariffs, least recently used first
+	private final LinkedHashMap<Key, String> quotes;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * Constructor
+	 */
+	public QuoteCache() {
+		this.size = Math.max(1, Integer.getInteger("broker.quoteCacheSize", DEFAULT_SIZE));
+		this.quotes = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Gets a fingerprint of a set of tariffs - the same for the same companies and tariffs,
+	 * whichever order they come in
+	 *
+	 * @param tariffs Map<String, Tariff>
+	 * @return long
+	 */
+	public static long fingerprint(Map<String, Tariff> tariffs) {
+		long fingerprint = tariffs.size();
+		for( Map.Entry<String, Tariff> e : tariffs.entrySet() ) {
+			Tariff t = e.getValue();
+			long h = mix(hash(e.getKey()) ^ t.getDayCost());
+			h = mix(h ^ t.getNightCost());
+			h = mix(h ^ t.getDiscount());
+			h = mix(h ^ t.getThreshold());
+			fingerprint += h;
+		}
+		return mix(fingerprint);
+	}
+
+	/**
+	 * Gets the version of a set of tariffs taken partly from a catalog snapshot - the snapshot's
+	 * epoch and version stand in for its tariffs, so only those fetched directly are hashed
+	 *
+	 * @param catalog TariffSnapshot : or null if every tariff was fetched directly
+	 * @param fromCatalog int : number of tariffs taken from the catalog
+	 * @param fetched Map<String, Tariff> : tariffs fetched directly
+	 * @return long
+	 */
+	public static long version(TariffSnapshot catalog, int fromCatalog, Map<String, Tariff> fetched) {
+		if( catalog == null )
+			return fingerprint(fetched);
+		long h = mix(catalog.getEpoch());
+		h = mix(h ^ catalog.getVersion());
+		h = mix(h ^ fromCatalog);
+		return mix(h + fingerprint(fetched));
+	}
+
+	/**
+	 * Gets a cached quote
+	 *
+	 * @param usage UsageSummary
+	 * @param tariffs long : version of the tariffs (see version and fingerprint)
+	 * @return String : cheapest company, or null if it isn't cached
+	 */
+	public synchronized String get(UsageSummary usage, long tariffs) {
+		String company = quotes.get(new Key(usage.fingerprint(), tariffs));
+		if( company == null )
+			misses++;
+		else
+			hits++;
+		return company;
+	}
+
+	/**
+	 * Caches a quote
+	 *
+	 * @param usage UsageSummary
+	 * @param tariffs long : version of the tariffs (see version and fingerprint)
+	 * @param company String : ignored if null
+	 */
+	public synchronized void put(UsageSummary usage, long tariffs, String company) {
+		if( company != null )
+			quotes.put(new Key(usage.fingerprint(), tariffs), company);
+	}
+
+	/**
+	 * Gets a summary of how well the cache is doing
+	 *
+	 * @return String
+	 */
+	public synchronized String stats() {
+		long lookups = hits + misses;
+		return hits + " of " + lookups + " quotes from cache (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%), "
+				+ quotes.size() + " cached";
+	}
+
+	/**
+	 * 64-bit hash of a string
+	 */
+	static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for( int i = 0; i < s.length(); i++ ) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Spreads the bits of a hash (the MurmurHash3 finaliser)
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * A summary fingerprint and a tariffs fingerprint
+	 */
+	private static class Key {
+		final long usage;
+		final long tariffs;
+
+		Key(long usage, long tariffs) {
+			this.usage = usage;
+			this.tariffs = tariffs;
+		}
+
+		public boolean equals(Object o) {
+			if( !(o instanceof Key) )
+				return false;
+			Key k = (Key) o;
+			return usage == k.usage && tariffs == k.tariffs;
+		}
+
+		public int hashCode() {
+			long h = usage * 31 + tariffs;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
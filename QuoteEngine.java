@@ -0,0 +1,318 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-batching quote engine for a broker.
+ *
+ * Customers waiting for a quote are collected for a short window (or until the batch is full).
+ * The tariffs are then fetched once for the whole batch, the customers x tariffs cost matrix is
+ * evaluated on a fork-join pool, and every customer's cheapest company is handed back in one go.
+ * Costs are compared exactly with Tariff.scaledCost. If the subclass has a TariffIndex for the
+ * tariffs, customers are ranked through that instead and only those it can't place are priced. Customers already quoted on the same
+ * readings and tariffs are answered from the QuoteCache, if there is one.
+ */
+public abstract class QuoteEngine {
+
+	// How long to collect customers before quoting - override with -Dbroker.quoteWindow=ms
+	public static final long DEFAULT_WINDOW = 100;
+
+	// Quote straight away once this many customers are waiting - override with -Dbroker.quoteBatch=n
+	public static final int DEFAULT_MAX_BATCH = 1000;
+
+	// Below this many customers a task quotes them itself rather than splitting further
+	private static final int SPLIT_THRESHOLD = 16;
+
+	private long window;
+	private int maxBatch;
+	private ForkJoinPool pool;
+	private ScheduledExecutorService flusher;
+	private QuoteCache cache;
+
+	// Customers waiting for the next batch - a repeat request replaces the earlier one
+	private Map<String, UsageSummary> pending = new LinkedHashMap<String, UsageSummary>();
+	private boolean scheduled;
+
+	private long batches;
+	private long quoted;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name String : used to name the engine's thread
+	 * @param cache QuoteCache : may be null
+	 */
+	public QuoteEngine(final String name, QuoteCache cache) {
+		this.cache = cache;
+		this.window = Long.getLong("broker.quoteWindow", DEFAULT_WINDOW);
+		this.maxBatch = Math.max(1, Integer.getInteger("broker.quoteBatch", DEFAULT_MAX_BATCH));
+		this.pool = new ForkJoinPool(Integer.getInteger("broker.quoteParallelism", Runtime.getRuntime().availableProcessors()));
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-quotes");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Fetches the tariffs to quote a batch on
+	 *
+	 * @return Map<String, Tariff> : tariffs by company
+	 * @throws Exception
+	 */
+	protected abstract Map<String, Tariff> fetchTariffs() throws Exception;
+
+	/**
+	 * Gets the version the quote cache knows a batch's tariffs by - a fingerprint of every tariff
+	 * by default. Called on the engine's thread straight after fetchTariffs returns them.
+	 *
+	 * @param tariffs Map<String, Tariff>
+	 * @return long
+	 */
+	protected long tariffVersion(Map<String, Tariff> tariffs) {
+		return QuoteCache.fingerprint(tariffs);
+	}
+
+	/**
+	 * Gets an index to rank a batch's customers through rather than pricing every tariff - none
+	 * by default. A customer it ranks onto a company outside the batch's tariffs is priced in full.
+	 *
+	 * @param tariffs Map<String, Tariff> : the batch's tariffs
+	 * @return TariffIndex : or null to price every tariff
+	 */
+	protected TariffIndex tariffIndex(Map<String, Tariff> tariffs) {
+		return null;
+	}
+
+	/**
+	 * Receives the quotes for a batch
+	 *
+	 * @param best Map<String, String> : cheapest company by meter id - null if there was none
+	 */
+	protected abstract void send(Map<String, String> best);
+
+	/**
+	 * Adds a customer to the next batch
+	 *
+	 * @param meterId String
+	 * @param usage UsageSummary
+	 */
+	public synchronized void submit(String meterId, UsageSummary usage) {
+		pending.put(meterId, usage);
+
+		if( pending.size() >= maxBatch ) {
+			flusher.execute(new Runnable() {
+				public void run() {
+					flush();
+				}
+			});
+		} else if( !scheduled ) {
+			scheduled = true;
+			flusher.schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Gets the number of customers waiting for the next batch
+	 *
+	 * @return int
+	 */
+	public synchronized int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets a summary of the batches quoted so far
+	 *
+	 * @return String
+	 */
+	public synchronized String stats() {
+		return quoted + " quotes in " + batches + " batches (" + (batches == 0 ? 0 : quoted / batches) + " per batch)";
+	}
+
+	/**
+	 * Quotes everyone waiting
+	 */
+	private void flush() {
+		Map<String, UsageSummary> batch;
+		synchronized( this ) {
+			batch = pending;
+			pending = new LinkedHashMap<String, UsageSummary>();
+			scheduled = false;
+		}
+		if( batch.isEmpty() )
+			return;
+
+		Map<String, String> best;
+		try {
+			best = quote(batch, fetchTariffs());
+		} catch (Exception e) {
+			e.printStackTrace();
+			best = new LinkedHashMap<String, String>();
+			for( String meterId : batch.keySet() )
+				best.put(meterId, null);
+		}
+
+		synchronized( this ) {
+			batches++;
+			quoted += batch.size();
+		}
+		send(best);
+	}
+
+	/**
+	 * Finds the cheapest company for every customer in a batch
+	 *
+	 * @param batch Map<String, UsageSummary>
+	 * @param tariffs Map<String, Tariff>
+	 * @return Map<String, String> : cheapest company by meter id
+	 */
+	Map<String, String> quote(Map<String, UsageSummary> batch, Map<String, Tariff> tariffs) {
+		// Only customers not already quoted on these readings and tariffs are worked out
+		long version = cache == null ? 0 : tariffVersion(tariffs);
+		Map<String, String> quotes = new LinkedHashMap<String, String>();
+		Map<String, UsageSummary> unquoted = new LinkedHashMap<String, UsageSummary>();
+		for( Map.Entry<String, UsageSummary> customer : batch.entrySet() ) {
+			UsageSummary usage = customer.getValue();
+			String cached = cache == null || usage == null ? null : cache.get(usage, version);
+			quotes.put(customer.getKey(), cached);
+			if( cached == null )
+				unquoted.put(customer.getKey(), usage);
+		}
+		if( unquoted.isEmpty() )
+			return quotes;
+
+		// Ranked through the index where there is one - only those it can't place go into the matrix
+		TariffIndex index = tariffIndex(tariffs);
+		if( index != null ) {
+			Map<String, UsageSummary> unranked = new LinkedHashMap<String, UsageSummary>();
+			for( Map.Entry<String, UsageSummary> customer : unquoted.entrySet() ) {
+				UsageSummary usage = customer.getValue();
+				String best = usage == null ? null : index.cheapest(usage);
+				if( best == null || !tariffs.containsKey(best) ) {
+					unranked.put(customer.getKey(), usage);
+					continue;
+				}
+				quotes.put(customer.getKey(), best);
+				if( cache != null )
+					cache.put(usage, version, best);
+			}
+			unquoted = unranked;
+			if( unquoted.isEmpty() )
+				return quotes;
+		}
+
+		// Tariffs as arrays for the inner loop, each pointing at its threshold's slot
+		String[] companies = tariffs.keySet().toArray(new String[tariffs.size()]);
+		Tariff[] rates = new Tariff[companies.length];
+		TreeSet<Integer> distinct = new TreeSet<Integer>();
+		for( int j = 0; j < companies.length; j++ ) {
+			rates[j] = tariffs.get(companies[j]);
+			distinct.add(rates[j].getThreshold());
+		}
+
+		int[] thresholds = new int[distinct.size()];
+		int k = 0;
+		for( Integer threshold : distinct )
+			thresholds[k++] = threshold;
+
+		int[] slots = new int[companies.length];
+		for( int j = 0; j < companies.length; j++ )
+			slots[j] = Arrays.binarySearch(thresholds, rates[j].getThreshold());
+
+		String[] meterIds = unquoted.keySet().toArray(new String[unquoted.size()]);
+		UsageSummary[] usages = unquoted.values().toArray(new UsageSummary[unquoted.size()]);
+		String[] best = new String[meterIds.length];
+
+		pool.invoke(new QuoteTask(usages, companies, rates, thresholds, slots, best, 0, usages.length));
+
+		for( int i = 0; i < meterIds.length; i++ ) {
+			quotes.put(meterIds[i], best[i]);
+			if( cache != null && usages[i] != null )
+				cache.put(usages[i], version, best[i]);
+		}
+		return quotes;
+	}
+
+	/**
+	 * Stops the engine's threads
+	 */
+	public void shutdown() {
+		flusher.shutdown();
+		pool.shutdown();
+	}
+
+	/**
+	 * Quotes a range of customers, splitting the range across the pool
+	 */
+	private static class QuoteTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private UsageSummary[] usages;
+		private String[] companies;
+		private Tariff[] rates;
+		private int[] thresholds;
+		private int[] slots;
+		private String[] best;
+		private int from, to;
+
+		QuoteTask(UsageSummary[] usages, String[] companies, Tariff[] rates, int[] thresholds, int[] slots,
+				String[] best, int from, int to) {
+			this.usages = usages;
+			this.companies = companies;
+			this.rates = rates;
+			this.thresholds = thresholds;
+			this.slots = slots;
+			this.best = best;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if( to - from <= SPLIT_THRESHOLD ) {
+				for( int i = from; i < to; i++ )
+					best[i] = cheapest(usages[i]);
+				return;
+			}
+
+			int middle = (from + to) / 2;
+			invokeAll(new QuoteTask(usages, companies, rates, thresholds, slots, best, from, middle),
+					new QuoteTask(usages, companies, rates, thresholds, slots, best, middle, to));
+		}
+
+		/**
+		 * One row of the matrix - every tariff's cost for one customer
+		 */
+		private String cheapest(UsageSummary usage) {
+			if( usage == null )
+				return null;
+
+			long total = usage.getTotal();
+			long[] below = usage.sumsBelow(thresholds);
+
+			String cheapest = null;
+			long lowest = Long.MAX_VALUE;
+			for( int j = 0; j < rates.length; j++ ) {
+				long cost = rates[j].scaledCost(total, total - below[slots[j]]);
+				if( cost < lowest ) {
+					lowest = cost;
+					cheapest = companies[j];
+				}
+			}
+			return cheapest;
+		}
+	}
+}
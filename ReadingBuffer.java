@@ -0,0 +1,188 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Growable list of readings held as primitive ints.
+ *
+ * Costs four bytes a reading rather than a boxed Integer and a reference each. Written - to save
+ * files and over RMI - as a count followed by zig-zag varint deltas from the previous reading, the
+ * same layout EntityCodec has always used for reading lists. Meter readings only ever climb by a
+ * few hundred units, so that's usually two bytes a reading.
+ */
+public class ReadingBuffer implements Serializable {
+
+	private static final long serialVersionUID = -4016620951846513227L;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private transient int[] values;
+	private transient int size;
+
+	/**
+	 * Constructor - an empty buffer
+	 */
+	public ReadingBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor - an empty buffer with room for some readings
+	 *
+	 * @param capacity int
+	 */
+	public ReadingBuffer(int capacity) {
+		values = new int[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Copies a list of readings
+	 *
+	 * @param readings List<Integer>
+	 * @return ReadingBuffer
+	 */
+	public static ReadingBuffer of(List<Integer> readings) {
+		ReadingBuffer buffer = new ReadingBuffer(readings.size());
+		for( Integer reading : readings )
+			buffer.add(reading);
+		return buffer;
+	}
+
+	/**
+	 * Appends a reading
+	 *
+	 * @param reading int
+	 */
+	public void add(int reading) {
+		if( size == values.length )
+			values = Arrays.copyOf(values, size + (size >> 1) + 1);
+		values[size++] = reading;
+	}
+
+	/**
+	 * Gets a reading by position
+	 *
+	 * @param index int
+	 * @return int
+	 */
+	public int get(int index) {
+		if( index < 0 || index >= size )
+			throw new IndexOutOfBoundsException(index + " of " + size);
+		return values[index];
+	}
+
+	/**
+	 * Gets the number of readings
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if there are no readings
+	 *
+	 * @return boolean
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Copies the readings into an array
+	 *
+	 * @return int[]
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Copies the readings into a list of boxed readings
+	 *
+	 * @return ArrayList<Integer>
+	 */
+	public ArrayList<Integer> toList() {
+		ArrayList<Integer> list = new ArrayList<Integer>(size);
+		for( int i = 0; i < size; i++ )
+			list.add(values[i]);
+		return list;
+	}
+
+	/**
+	 * Drops any spare capacity
+	 */
+	public void trim() {
+		if( values.length > size )
+			values = Arrays.copyOf(values, Math.max(size, 1));
+	}
+
+	/**
+	 * Writes the readings as a count followed by deltas from the previous reading
+	 *
+	 * @param out DataOutput
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		EntityCodec.writeVarint(out, size);
+		int previous = 0;
+		for( int i = 0; i < size; i++ ) {
+			EntityCodec.writeSignedVarint(out, values[i] - previous);
+			previous = values[i];
+		}
+	}
+
+	/**
+	 * Reads readings written by write()
+	 *
+	 * @param in DataInput
+	 * @return ReadingBuffer
+	 * @throws IOException
+	 */
+	public static ReadingBuffer read(DataInput in) throws IOException {
+		int count = EntityCodec.readVarint(in);
+		if( count < 0 )
+			throw new IOException("Bad reading count " + count);
+
+		ReadingBuffer buffer = new ReadingBuffer(count);
+		int previous = 0;
+		for( int i = 0; i < count; i++ ) {
+			previous += EntityCodec.readSignedVarint(in);
+			buffer.values[i] = previous;
+		}
+		buffer.size = count;
+		return buffer;
+	}
+
+	/**
+	 * Sends the readings as deltas rather than an int each
+	 *
+	 * @Override
+	 * @param out ObjectOutputStream
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		write(out);
+	}
+
+	/**
+	 * @Override
+	 * @param in ObjectInputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		ReadingBuffer read = read(in);
+		values = read.values;
+		size = read.size;
+	}
+}
@@ -0,0 +1,92 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares ReadingBuffer against a boxed ArrayList<Integer> for a meter's history - heap used,
+ * bytes sent over RMI (Java serialization) and encode/decode time.
+ *
+ * Usage: java ReadingBufferBenchmark [readings...]  (defaults to 10^5, 10^6 and 10^7)
+ * The largest history needs a heap of about 2GB for the boxed list - run with -Xmx2g or more.
+ */
+public class ReadingBufferBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 100000, 1000000, 10000000 };
+		if( args.length > 0 ) {
+			sizes = new int[args.length];
+			for( int i = 0; i < args.length; i++ )
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.println(String.format("%-10s %-8s %12s %12s %12s %12s", "readings", "history", "heap(KB)", "bytes", "encode(ms)", "decode(ms)"));
+		for( int size : sizes ) {
+			// A meter's climbing readings, as Meter makes them
+			int[] readings = new int[size];
+			Random r = new Random(42);
+			int total = 0;
+			for( int i = 0; i < size; i++ ) {
+				readings[i] = total;
+				total += r.nextInt(500);
+			}
+
+			long before = usedHeap();
+			ArrayList<Integer> boxed = new ArrayList<Integer>(size);
+			for( int reading : readings )
+				boxed.add(reading);
+			long boxedHeap = usedHeap() - before;
+			report(size, "boxed", boxedHeap, boxed);
+			boxed = null;
+
+			before = usedHeap();
+			ReadingBuffer buffer = new ReadingBuffer(size);
+			for( int reading : readings )
+				buffer.add(reading);
+			long bufferHeap = usedHeap() - before;
+			ReadingBuffer copy = report(size, "buffer", bufferHeap, buffer);
+
+			for( int i = 0; i < size; i++ ) {
+				if( copy.get(i) != readings[i] ) {
+					System.out.println("Reading " + i + " didn't survive serialization!");
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serializes and deserializes a history, printing a line of results
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T report(int size, String history, long heap, T o) throws Exception {
+		long start = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		long encode = System.nanoTime() - start;
+
+		byte[] data = bytes.toByteArray();
+		bytes = null;
+
+		start = System.nanoTime();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		T copy = (T) in.readObject();
+		in.close();
+		long decode = System.nanoTime() - start;
+
+		System.out.println(String.format("%-10d %-8s %12d %12d %12d %12d", size, history, heap / 1024, data.length,
+				encode / 1000000, decode / 1000000));
+		return copy;
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for( int i = 0; i < 3; i++ )
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,224 @@
+import java.io.IOException;
+
+/**
+ * A meter's reading history kept in retention tiers, so its size is bounded however long the
+ * meter runs.
+ *
+ * Recent readings are kept as taken. Once older than the raw retention they are rolled up into
+ * hourly readings, and hourly readings older than the hourly retention into daily ones; daily
+ * readings are dropped after the daily retention. Meter readings only ever climb, so a roll-up
+ * keeps the last reading of each hour or day (periods are in UTC). Each tier is a ReadingStore
+ * and the tiers never overlap in time - a roll-up is written and synced before the readings it
+ * replaces are dropped, and periods already rolled up are skipped, so an interrupted compaction
+ * simply carries on next time.
+ *
+ * Instances are made per use and hold no lock of their own - the meter owning the history
+ * serialises compaction and reads on its own lock.
+ */
+public class ReadingHistory {
+
+	// Resolutions (and tiers)
+	public static final int RAW = 0;
+	public static final int HOURLY = 1;
+	public static final int DAILY = 2;
+
+	public static final long HOUR = 60 * 60 * 1000L;
+	public static final long DAY = 24 * HOUR;
+
+	// Length of a period at each resolution - raw readings have none
+	private static final long[] PERIODS = { 0, HOUR, DAY };
+
+	// How long readings are kept as taken - override with -Dmeter.rawRetention=ms
+	public static final long DEFAULT_RAW_RETENTION = 7 * DAY;
+
+	// How long hourly readings are kept - override with -Dmeter.hourlyRetention=ms
+	public static final long DEFAULT_HOURLY_RETENTION = 90 * DAY;
+
+	// How long daily readings are kept - override with -Dmeter.dailyRetention=ms (0 keeps them forever)
+	public static final long DEFAULT_DAILY_RETENTION = 3650 * DAY;
+
+	private ReadingStore raw;
+	private ReadingStore hourly;
+	private ReadingStore daily;
+
+	/**
+	 * Constructor
+	 *
+	 * @param raw ReadingStore : readings as taken
+	 * @param hourly ReadingStore : hourly roll-ups
+	 * @param daily ReadingStore : daily roll-ups
+	 */
+	public ReadingHistory(ReadingStore raw, ReadingStore hourly, ReadingStore daily) {
+		this.raw = raw;
+		this.hourly = hourly;
+		this.daily = daily;
+	}
+
+	/**
+	 * Checks if a resolution is one getHistory() understands
+	 *
+	 * @param resolution int
+	 * @return boolean
+	 */
+	public static boolean isResolution(int resolution) {
+		return resolution >= RAW && resolution <= DAILY;
+	}
+
+	/**
+	 * Rolls up and drops readings past their tier's retention
+	 *
+	 * @param now long : current time (ms since epoch)
+	 * @return int : number of readings rolled up or dropped
+	 * @throws IOException
+	 */
+	public int compact(long now) throws IOException {
+		int compacted = rollUp(raw, hourly, HOUR, now - Long.getLong("meter.rawRetention", DEFAULT_RAW_RETENTION));
+		compacted += rollUp(hourly, daily, DAY, now - Long.getLong("meter.hourlyRetention", DEFAULT_HOURLY_RETENTION));
+
+		long dailyRetention = Long.getLong("meter.dailyRetention", DEFAULT_DAILY_RETENTION);
+		if( dailyRetention > 0 ) {
+			int expired = daily.indexOf(now - dailyRetention);
+			daily.dropBefore(expired);
+			compacted += expired;
+		}
+		return compacted;
+	}
+
+	/**
+	 * Gets the whole history at a resolution - the last reading of each period, or every reading
+	 * kept for RAW. Older readings are only available at the resolution of the tier they're in.
+	 *
+	 * @param resolution int : RAW, HOURLY or DAILY
+	 * @return ReadingBuffer : oldest first
+	 * @throws IOException
+	 */
+	public ReadingBuffer getHistory(int resolution) throws IOException {
+		if( !isResolution(resolution) )
+			throw new IllegalArgumentException("Unknown resolution " + resolution);
+
+		long period = PERIODS[resolution];
+		ReadingBuffer history = new ReadingBuffer(daily.size() + hourly.size() + raw.size());
+
+		// The tiers follow on from each other, but a period can straddle the join between two
+		Downsampler downsampler = new Downsampler(period, history);
+		downsampler.add(daily);
+		downsampler.add(hourly);
+		downsampler.add(raw);
+		downsampler.finish();
+
+		history.trim();
+		return history;
+	}
+
+	/**
+	 * Gets the most recent reading, from whichever tier holds it
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public int latest() throws IOException {
+		if( raw.size() > 0 )
+			return raw.latest();
+		if( hourly.size() > 0 )
+			return hourly.latest();
+		return daily.latest();
+	}
+
+	/**
+	 * Releases the files of every tier. They reopen themselves on next use.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		raw.close();
+		hourly.close();
+		daily.close();
+	}
+
+	/**
+	 * Gets the number of readings held in each tier
+	 *
+	 * @return int[] : indexed by resolution
+	 * @throws IOException
+	 */
+	public int[] sizes() throws IOException {
+		return new int[] { raw.size(), hourly.size(), daily.size() };
+	}
+
+	/**
+	 * Rolls the readings of a tier taken before a cutoff into the next tier and drops them
+	 */
+	private static int rollUp(ReadingStore from, ReadingStore to, long period, long cutoff) throws IOException {
+		// Only whole periods are rolled up
+		int end = from.indexOf(periodOf(cutoff, period));
+		if( end == 0 )
+			return 0;
+
+		// Skip periods an interrupted compaction already wrote
+		long latest = to.size() == 0 ? Long.MIN_VALUE : to.getTime(to.size() - 1);
+
+		long current = periodOf(from.getTime(0), period);
+		int last = from.get(0);
+		for( int i = 1; i < end; i++ ) {
+			long p = periodOf(from.getTime(i), period);
+			if( p != current ) {
+				if( current > latest )
+					to.append(current, last);
+				current = p;
+			}
+			last = from.get(i);
+		}
+		if( current > latest )
+			to.append(current, last);
+
+		to.sync();
+		from.dropBefore(end);
+		return end;
+	}
+
+	/**
+	 * Gets the start of the period a time falls in
+	 */
+	private static long periodOf(long time, long period) {
+		return time - Math.floorMod(time, period);
+	}
+
+	/**
+	 * Keeps the last reading of each period
+	 */
+	private static class Downsampler {
+		private long period;
+		private ReadingBuffer out;
+		private boolean started;
+		private long current;
+		private int last;
+
+		Downsampler(long period, ReadingBuffer out) {
+			this.period = period;
+			this.out = out;
+		}
+
+		void add(ReadingStore tier) throws IOException {
+			int size = tier.size();
+			for( int i = 0; i < size; i++ ) {
+				int reading = tier.get(i);
+				if( period == 0 ) {
+					out.add(reading);
+					continue;
+				}
+
+				long p = periodOf(tier.getTime(i), period);
+				if( started && p != current )
+					out.add(last);
+				started = true;
+				current = p;
+				last = reading;
+			}
+		}
+
+		void finish() {
+			if( started )
+				out.add(last);
+		}
+	}
+}
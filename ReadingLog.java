@@ -0,0 +1,245 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append-only log of length-prefixed records, one file per entity.
+ *
+ * Each record is written as an int length followed by the record bytes, so appending a reading
+ * costs the size of that reading rather than the size of the whole entity.
+ */
+public class ReadingLog implements Syncable {
+
+	// One log object per file so every writer in the JVM shares the same lock
+	private static final ConcurrentMap<String, ReadingLog> logs = new ConcurrentHashMap<String, ReadingLog>();
+
+	private File file;
+	private FileOutputStream fos;
+	private DataOutputStream out;
+
+	// Number of records currently in the file
+	private int records = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file File
+	 */
+	private ReadingLog(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Gets the shared log for a file
+	 *
+	 * @param file File
+	 * @return ReadingLog
+	 */
+	public static ReadingLog forFile(File file) {
+		String key = file.getAbsolutePath();
+		ReadingLog log = logs.get(key);
+		if( log == null ) {
+			ReadingLog created = new ReadingLog(file);
+			log = logs.putIfAbsent(key, created);
+			if( log == null )
+				log = created;
+		}
+		return log;
+	}
+
+	/**
+	 * Appends a record to the end of the log
+	 *
+	 * @param record byte[]
+	 * @return int : number of records in the log after the append
+	 * @throws IOException
+	 */
+	public synchronized int append(byte[] record) throws IOException {
+		if( out == null ) {
+			// Cut off any torn record a crash left at the end, or it would swallow everything after it
+			List<byte[]> complete = new ArrayList<byte[]>();
+			long end = scan(complete);
+			records = complete.size();
+			if( file.exists() && file.length() > end ) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(end);
+				} finally {
+					raf.close();
+				}
+			}
+			fos = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+		}
+
+		out.writeInt(record.length);
+		out.write(record);
+		out.flush();
+
+		// Made durable by the next group commit rather than one fsync per record
+		GroupCommit.getInstance().written(this);
+
+		return ++records;
+	}
+
+	/**
+	 * Gets the number of records in the log
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int size() throws IOException {
+		if( records < 0 )
+			records = readAll().size();
+		return records;
+	}
+
+	/**
+	 * Forces appended records to disk
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if( out != null ) {
+			out.flush();
+			fos.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Reads every complete record in the log. A partially written record at the end
+	 * (e.g. from a crash mid-append) is ignored.
+	 *
+	 * @return List<byte[]>
+	 * @throws IOException
+	 */
+	public synchronized List<byte[]> readAll() throws IOException {
+		List<byte[]> list = new ArrayList<byte[]>();
+		scan(list);
+		return list;
+	}
+
+	/**
+	 * Reads the complete records in the log
+	 *
+	 * @param list List<byte[]> : records are added to this
+	 * @return long : offset just past the last complete record
+	 * @throws IOException
+	 */
+	private long scan(List<byte[]> list) throws IOException {
+		if( !file.exists() )
+			return 0;
+
+		long remaining = file.length();
+		long end = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while( remaining >= 4 ) {
+				int length = in.readInt();
+				// A torn length can claim more than the file holds - don't trust it for an allocation
+				if( length < 0 || length > remaining - 4 )
+					break;
+				byte[] record = new byte[length];
+				in.readFully(record);
+				list.add(record);
+				remaining -= 4 + length;
+				end += 4 + length;
+			}
+		} catch (EOFException e) {
+			// End of the log (or a torn final record)
+		} finally {
+			in.close();
+		}
+		return end;
+	}
+
+	/**
+	 * Empties the log - called once a snapshot containing every record has been written
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void truncate() throws IOException {
+		close();
+		new FileOutputStream(file).close();
+		records = 0;
+	}
+
+	/**
+	 * Drops the oldest records once a snapshot containing them is durable, keeping anything
+	 * appended while the snapshot was being written
+	 *
+	 * @param count int
+	 * @throws IOException
+	 */
+	public synchronized void discardFirst(int count) throws IOException {
+		List<byte[]> all = readAll();
+		if( all.isEmpty() || count <= 0 )
+			return;
+		if( count >= all.size() ) {
+			truncate();
+			return;
+		}
+
+		replaceAll(all.subList(count, all.size()));
+	}
+
+	/**
+	 * Atomically replaces the contents of the log (used to compact it)
+	 *
+	 * @param replacement List<byte[]>
+	 * @throws IOException
+	 */
+	public synchronized void replaceAll(List<byte[]> replacement) throws IOException {
+		close();
+		File temp = new File(file.getPath() + SnapshotFile.TEMP_SUFFIX);
+		FileOutputStream tempStream = new FileOutputStream(temp);
+		DataOutputStream tail = new DataOutputStream(new BufferedOutputStream(tempStream));
+		try {
+			for( byte[] record : replacement ) {
+				tail.writeInt(record.length);
+				tail.write(record);
+			}
+			tail.flush();
+			tempStream.getChannel().force(false);
+		} finally {
+			tail.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		records = replacement.size();
+	}
+
+	/**
+	 * Closes the underlying file
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if( out != null ) {
+			out.close();
+			out = null;
+			fos = null;
+		}
+	}
+
+	/**
+	 * Gets the file backing the log
+	 *
+	 * @return File
+	 */
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memory-mapped time series of a meter's readings.
+ *
+ * Readings are fixed-width records (timestamp then value) appended to a file that is read and
+ * written through a MappedByteBuffer, so a meter's history lives in the page cache rather than on
+ * the heap and is never re-serialized. The record count in the header is only bumped once a
+ * record has been written, so a torn append is simply ignored.
+ *
+ * The oldest readings can be dropped (see ReadingHistory). The file is then rewritten without
+ * them and swapped in atomically, and the header keeps count of how many have gone so readings
+ * keep their positions in the meter's lifetime history.
+ */
+public class ReadingStore implements Syncable {
+
+	public static final int MAGIC = 0x534D5232; // "SMR2"
+
+	// Header is magic, record size, record count and number of records dropped
+	public static final int HEADER_SIZE = 24;
+
+	// Stores from before readings could be dropped - read as they are, upgraded when first trimmed
+	public static final int MAGIC_V1 = 0x534D5253; // "SMRS"
+	public static final int HEADER_SIZE_V1 = 16;
+	// Timestamp (long) then reading (int)
+	public static final int RECORD_SIZE = 12;
+
+	// File grows by at least this many records at a time
+	private static final int MIN_GROWTH = 4096;
+
+	private static final ConcurrentMap<String, ReadingStore> stores = new ConcurrentHashMap<String, ReadingStore>();
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private int header;
+	private int capacity;
+	private int count;
+	private int dropped;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file File
+	 */
+	private ReadingStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Gets the shared store for a file
+	 *
+	 * @param file File
+	 * @return ReadingStore
+	 */
+	public static ReadingStore forFile(File file) {
+		String key = file.getAbsolutePath();
+		ReadingStore store = stores.get(key);
+		if( store == null ) {
+			ReadingStore created = new ReadingStore(file);
+			store = stores.putIfAbsent(key, created);
+			if( store == null )
+				store = created;
+		}
+		return store;
+	}
+
+	/**
+	 * Appends a reading
+	 *
+	 * @param time long : when the reading was taken (ms since epoch)
+	 * @param value int
+	 * @return int : number of readings in the store
+	 * @throws IOException
+	 */
+	public synchronized int append(long time, int value) throws IOException {
+		open();
+		if( count == capacity )
+			remap(Math.max(capacity * 2, capacity + MIN_GROWTH));
+
+		int position = header + count * RECORD_SIZE;
+		map.putLong(position, time);
+		map.putInt(position + 8, value);
+
+		// Publish the record
+		count++;
+		map.putLong(8, count);
+
+		GroupCommit.getInstance().written(this);
+		return count;
+	}
+
+	/**
+	 * Gets the number of readings
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int size() throws IOException {
+		open();
+		return count;
+	}
+
+	/**
+	 * Gets the number of readings dropped from the start of the store - the position of the first
+	 * reading still held in the meter's lifetime history
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int dropped() throws IOException {
+		open();
+		return dropped;
+	}
+
+	/**
+	 * Gets the number of readings ever appended, including those dropped
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int total() throws IOException {
+		open();
+		return dropped + count;
+	}
+
+	/**
+	 * Finds the first reading taken at or after a time (readings are appended in time order)
+	 *
+	 * @param time long
+	 * @return int : position of the reading, or size() if there is none
+	 * @throws IOException
+	 */
+	public synchronized int indexOf(long time) throws IOException {
+		open();
+		int low = 0, high = count;
+		while( low < high ) {
+			int middle = (low + high) >>> 1;
+			if( map.getLong(header + middle * RECORD_SIZE) < time )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Drops the oldest readings. The remaining readings are written to a new file which replaces
+	 * the old one in a single rename, so a crash leaves one or the other.
+	 *
+	 * @param index int : readings before this position are dropped
+	 * @throws IOException
+	 */
+	public synchronized void dropBefore(int index) throws IOException {
+		open();
+		if( index <= 0 )
+			return;
+		if( index > count )
+			throw new IndexOutOfBoundsException(index + " of " + count);
+
+		int kept = count - index;
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel to = out.getChannel();
+			MappedByteBuffer trimmed = to.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) Math.max(kept, MIN_GROWTH) * RECORD_SIZE);
+			trimmed.putInt(0, MAGIC);
+			trimmed.putInt(4, RECORD_SIZE);
+			trimmed.putLong(8, kept);
+			trimmed.putLong(16, dropped + index);
+			for( int i = 0; i < kept; i++ ) {
+				int from = header + (index + i) * RECORD_SIZE;
+				int position = HEADER_SIZE + i * RECORD_SIZE;
+				trimmed.putLong(position, map.getLong(from));
+				trimmed.putInt(position + 8, map.getInt(from + 8));
+			}
+			trimmed.force();
+		} finally {
+			out.close();
+		}
+
+		close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		open();
+	}
+
+	/**
+	 * Gets a reading by position
+	 *
+	 * @param index int
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int get(int index) throws IOException {
+		open();
+		checkIndex(index);
+		return map.getInt(header + index * RECORD_SIZE + 8);
+	}
+
+	/**
+	 * Gets the time of a reading by position
+	 *
+	 * @param index int
+	 * @return long
+	 * @throws IOException
+	 */
+	public synchronized long getTime(int index) throws IOException {
+		open();
+		checkIndex(index);
+		return map.getLong(header + index * RECORD_SIZE);
+	}
+
+	/**
+	 * Gets the most recent reading
+	 *
+	 * @return int
+	 * @throws IOException
+	 */
+	public synchronized int latest() throws IOException {
+		open();
+		if( count == 0 )
+			throw new IOException("No readings in " + file);
+		return get(count - 1);
+	}
+
+	/**
+	 * Copies readings into a buffer (for sending over RMI)
+	 *
+	 * @param from int : first index, inclusive
+	 * @param to int : last index, exclusive
+	 * @return ReadingBuffer
+	 * @throws IOException
+	 */
+	public synchronized ReadingBuffer toBuffer(int from, int to) throws IOException {
+		open();
+		if( from < 0 || to > count || from > to )
+			throw new IndexOutOfBoundsException(from + ".." + to + " of " + count);
+
+		ReadingBuffer buffer = new ReadingBuffer(to - from);
+		for( int i = from; i < to; i++ )
+			buffer.add(map.getInt(header + i * RECORD_SIZE + 8));
+		return buffer;
+	}
+
+	/**
+	 * Forces appended readings to disk
+	 *
+	 * @Override
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if( map != null )
+			map.force();
+	}
+
+	/**
+	 * Releases the file. The store reopens itself on next use.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if( raf != null ) {
+			sync();
+			map = null;
+			channel = null;
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * Gets the file backing the store
+	 *
+	 * @return File
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Opens and maps the file, writing a header if it's new
+	 */
+	private void open() throws IOException {
+		if( raf != null )
+			return;
+
+		boolean created = !file.exists() || file.length() < HEADER_SIZE_V1;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+
+		if( created ) {
+			header = HEADER_SIZE;
+			raf.setLength(HEADER_SIZE + MIN_GROWTH * RECORD_SIZE);
+			mapFile();
+			map.putInt(0, MAGIC);
+			map.putInt(4, RECORD_SIZE);
+			map.putLong(8, 0);
+			map.putLong(16, 0);
+			count = 0;
+			dropped = 0;
+		} else {
+			MappedByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE_V1);
+			int magic = start.getInt(0);
+			header = magic == MAGIC_V1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+			if( (magic != MAGIC && magic != MAGIC_V1) || start.getInt(4) != RECORD_SIZE || raf.length() < header ) {
+				close();
+				throw new IOException(file + " is not a reading store");
+			}
+			mapFile();
+			count = (int) Math.min(map.getLong(8), capacity);
+			dropped = header == HEADER_SIZE ? (int) map.getLong(16) : 0;
+		}
+	}
+
+	private void remap(int newCapacity) throws IOException {
+		raf.setLength(header + (long) newCapacity * RECORD_SIZE);
+		mapFile();
+	}
+
+	private void mapFile() throws IOException {
+		long length = raf.length();
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		capacity = (int) ((length - header) / RECORD_SIZE);
+	}
+
+	private void checkIndex(int index) {
+		if( index < 0 || index >= count )
+			throw new IndexOutOfBoundsException(index + " of " + count);
+	}
+}
@@ -1,6 +1,20 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Exposes an ArrayList remotely 
@@ -8,8 +22,41 @@ import java.util.ArrayList;
 public class RemoteList<T> extends UnicastRemoteObject implements RemoteListInterface<T>{
 	
 	private static final long serialVersionUID = -1674806174633078218L;
+	
+	// Recent changes kept in memory for changesSince - older versions get the whole list
+	public static final int CHANGE_LOG_SIZE = 4096;
+	
+	// Entries not renewed for this long are removed - override with -Ddirectory.leaseDuration=ms
+	public static final long DEFAULT_LEASE_DURATION = 60000;
+	
+	// One thread reaps every list in the JVM
+	private static ScheduledExecutorService reaper;
+	
 	private ArrayList<T> list;
 	private int type;
+	
+	// Identifies this list - versions only mean anything within one epoch
+	private long epoch;
+	
+	// Bumped by every add and remove
+	private long version;
+	
+	// Membership index so adding doesn't scan the list
+	private transient HashSet<T> members;
+	
+	// Entries sorted by name, for prefix searches
+	private transient TreeMap<String, T> byName;
+	
+	// Most recent changes, oldest first
+	private transient ArrayDeque<Change<T>> changes;
+	
+	// Pushes changes to subscribers
+	private transient DirectoryNotifier<T> notifier;
+	
+	// When each entry's lease runs out
+	private transient HashMap<T, Long> leases;
+	private transient long leaseDuration;
+	
 	/**
 	 * Constructor 
 	 * 
@@ -20,6 +67,9 @@ public class RemoteList<T> extends UnicastRemoteObject implements RemoteListInte
 		super();
 		this.list = list;
 		this.type = type;
+		this.epoch = newEpoch();
+		this.version = list.size();
+		index();
 		DataPersistence dp = new DataPersistence();
 		dp.saveRemoteList(this, type);
 	}
@@ -33,35 +83,423 @@ public class RemoteList<T> extends UnicastRemoteObject implements RemoteListInte
 		super();
 		this.list = new ArrayList<T>();
 		this.type = type;
+		this.epoch = newEpoch();
+		index();
 		DataPersistence dp = new DataPersistence();
 		dp.saveRemoteList(this, type);
 	}
 	
 	/**
-	 * Access the list
+	 * Handles deserialization of the object - rebuilds the indexes
+	 * 
+	 * @Override
+	 * @param inputStream ObjectInputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+		inputStream.defaultReadObject();
+		
+		// Saved before lists had an epoch and version
+		if( epoch == 0 )
+			epoch = newEpoch();
+		if( version == 0 )
+			version = list.size();
+		index();
+	}
+	
+	/**
+	 * Builds the membership and prefix indexes from the list
+	 */
+	private void index() {
+		members = new HashSet<T>(list);
+		byName = new TreeMap<String, T>();
+		for( T obj : list )
+			byName.put(String.valueOf(obj), obj);
+		changes = new ArrayDeque<Change<T>>();
+		
+		// Everything already in the list gets a full lease, giving owners time to renew
+		leaseDuration = Long.getLong("directory.leaseDuration", DEFAULT_LEASE_DURATION);
+		leases = new HashMap<T, Long>();
+		long expiry = System.currentTimeMillis() + leaseDuration;
+		for( T obj : list )
+			leases.put(obj, expiry);
+		startReaper();
+	}
+	
+	/**
+	 * Starts removing expired entries in the background
+	 */
+	private void startReaper() {
+		long interval = Math.max(1, leaseDuration / 4);
+		reaper().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reap();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Gets the thread shared by every list for reaping, starting it on first use
+	 * 
+	 * @return ScheduledExecutorService
+	 */
+	private static synchronized ScheduledExecutorService reaper() {
+		if( reaper == null ) {
+			reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "directory-reaper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return reaper;
+	}
+	
+	private static long newEpoch() {
+		long epoch = 0;
+		while( epoch == 0 )
+			epoch = new Random().nextLong();
+		return epoch;
+	}
+	
+	/**
+	 * Access the list - a copy, as RMI marshals it after we return while the lease reaper may 
+	 * still be changing the list
 	 * 
 	 * @Override
 	 * @return Object
 	 * @throws RemoteException
 	 */
-	public ArrayList<T> accessList() throws RemoteException {
-		return list;
+	public synchronized ArrayList<T> accessList() throws RemoteException {
+		return new ArrayList<T>(list);
 	}
 
 	/**
-	 * Allows us to add an object to the remote list
+	 * Allows us to add an object to the remote list. Only the new entry is written to disk 
+	 * (see DataPersistence.logRemoteListChange).
 	 * 
 	 * @Override
 	 * @param T obj
 	 * @boolean 
 	 */
-	public boolean addObject(T obj) throws RemoteException {
-		if( !list.contains(obj) )
-			list.add(obj);		
+	public synchronized boolean addObject(T obj) throws RemoteException {
+		if( add(obj) ) {
+			DataPersistence dp = new DataPersistence();
+			dp.logRemoteListChange(this, type, true, obj);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds many objects at once (e.g. a whole rack of meters booting) - they are journalled 
+	 * together as a single entry
+	 * 
+	 * @Override
+	 * @param objs Collection<T>
+	 * @return boolean
+	 * @throws RemoteException
+	 */
+	public synchronized boolean addObjects(Collection<T> objs) throws RemoteException {
+		ArrayList<T> added = new ArrayList<T>();
+		for( T obj : objs ) {
+			if( add(obj) )
+				added.add(obj);
+		}
+		
+		if( !added.isEmpty() ) {
+			DataPersistence dp = new DataPersistence();
+			dp.logRemoteListChange(this, type, true, added);
+		}
+		
+		return true;
+	}
 	
-		DataPersistence dp = new DataPersistence();
-		dp.saveRemoteList(this, type);
+	/**
+	 * Removes an object from the remote list
+	 * 
+	 * @Override
+	 * @param obj T
+	 * @return boolean : false if it wasn't in the list
+	 * @throws RemoteException
+	 */
+	public synchronized boolean removeObject(T obj) throws RemoteException {
+		if( !remove(obj) )
+			return false;
 		
+		DataPersistence dp = new DataPersistence();
+		dp.logRemoteListChange(this, type, false, obj);
+		return true;
+	}
+	
+	/**
+	 * Re-applies an entry from the list's journal
+	 * 
+	 * @param obj T
+	 * @param added boolean : false if it was removed
+	 */
+	synchronized void replayObject(T obj, boolean added) {
+		if( added )
+			add(obj);
+		else
+			remove(obj);
+	}
+	
+	/**
+	 * Re-applies an entry from the list's journal holding many objects (e.g. a batch of expired leases)
+	 * 
+	 * @param objs Collection<T>
+	 * @param added boolean : false if they were removed
+	 */
+	synchronized void replayObjects(Collection<T> objs, boolean added) {
+		if( !added ) {
+			removeAll(objs);
+			return;
+		}
+		for( T obj : objs )
+			add(obj);
+	}
+	
+	private boolean add(T obj) {
+		leases.put(obj, System.currentTimeMillis() + leaseDuration);
+		if( !members.add(obj) )
+			return false;
+		list.add(obj);
+		byName.put(String.valueOf(obj), obj);
+		logChange(obj, true);
+		return true;
+	}
+	
+	private boolean remove(T obj) {
+		leases.remove(obj);
+		if( !members.remove(obj) )
+			return false;
+		list.remove(obj);
+		byName.remove(String.valueOf(obj));
+		logChange(obj, false);
 		return true;
 	}
+	
+	/**
+	 * Removes many objects in one pass over the list, rather than a pass each
+	 * 
+	 * @param objs Collection<T>
+	 * @return ArrayList<T> : the objects that were in the list
+	 */
+	private ArrayList<T> removeAll(Collection<T> objs) {
+		HashSet<T> removed = new HashSet<T>();
+		ArrayList<T> gone = new ArrayList<T>();
+		for( T obj : objs ) {
+			leases.remove(obj);
+			if( !members.remove(obj) )
+				continue;
+			removed.add(obj);
+			gone.add(obj);
+			byName.remove(String.valueOf(obj));
+			logChange(obj, false);
+		}
+		if( removed.isEmpty() )
+			return gone;
+		
+		ArrayList<T> kept = new ArrayList<T>(list.size() - removed.size());
+		for( T obj : list ) {
+			if( !removed.contains(obj) )
+				kept.add(obj);
+		}
+		list = kept;
+		return gone;
+	}
+	
+	private void logChange(T obj, boolean added) {
+		version++;
+		changes.addLast(new Change<T>(version, obj, added));
+		if( changes.size() > CHANGE_LOG_SIZE )
+			changes.removeFirst();
+	}
+	
+	/**
+	 * Renews the leases of entries. Owners call this in batches well within the lease duration.
+	 * 
+	 * @Override
+	 * @param objs Collection<T>
+	 * @return ArrayList<T> : entries that aren't in the list (e.g. already expired) - add them again
+	 * @throws RemoteException
+	 */
+	public synchronized ArrayList<T> renewLeases(Collection<T> objs) throws RemoteException {
+		long expiry = System.currentTimeMillis() + leaseDuration;
+		ArrayList<T> unknown = new ArrayList<T>();
+		for( T obj : objs ) {
+			if( members.contains(obj) )
+				leases.put(obj, expiry);
+			else
+				unknown.add(obj);
+		}
+		return unknown;
+	}
+	
+	/**
+	 * Gets how long a lease lasts
+	 * 
+	 * @Override
+	 * @return long : milliseconds
+	 * @throws RemoteException
+	 */
+	public long leaseDuration() throws RemoteException {
+		return leaseDuration;
+	}
+	
+	/**
+	 * Removes every entry whose lease has run out - journalled together as a single entry
+	 */
+	synchronized void reap() {
+		long now = System.currentTimeMillis();
+		ArrayList<T> expired = new ArrayList<T>();
+		for( Map.Entry<T, Long> lease : leases.entrySet() ) {
+			if( lease.getValue() < now )
+				expired.add(lease.getKey());
+		}
+		
+		expired = removeAll(expired);
+		
+		if( !expired.isEmpty() ) {
+			DataPersistence dp = new DataPersistence();
+			dp.logRemoteListChange(this, type, false, expired);
+		}
+	}
+	
+	/**
+	 * Gets the list's version - cheap enough to use as a ping
+	 * 
+	 * @Override
+	 * @return long
+	 * @throws RemoteException
+	 */
+	public synchronized long version() throws RemoteException {
+		return version;
+	}
+	
+	/**
+	 * Gets the changes made since a version. If they're no longer all in the change log, the
+	 * whole list is sent instead (with a from version of 0).
+	 * 
+	 * @Override
+	 * @param version long : 0 for everything
+	 * @return ListDelta<T>
+	 * @throws RemoteException
+	 */
+	public synchronized ListDelta<T> changesSince(long version) throws RemoteException {
+		if( version == this.version )
+			return new ListDelta<T>(epoch, version, version, new ArrayList<T>(), new ArrayList<T>());
+		
+		long oldest = changes.isEmpty() ? this.version : changes.peekFirst().version - 1;
+		if( version <= 0 || version < oldest || version > this.version )
+			return new ListDelta<T>(epoch, 0, this.version, new ArrayList<T>(list), new ArrayList<T>());
+		
+		// Net effect of each object's changes, in the order they were made
+		Map<T, Boolean> net = new LinkedHashMap<T, Boolean>();
+		for( Change<T> change : changes ) {
+			if( change.version > version ) {
+				net.remove(change.obj);
+				net.put(change.obj, change.added);
+			}
+		}
+		
+		ArrayList<T> added = new ArrayList<T>();
+		ArrayList<T> removed = new ArrayList<T>();
+		for( Map.Entry<T, Boolean> e : net.entrySet() ) {
+			if( e.getValue() )
+				added.add(e.getKey());
+			else
+				removed.add(e.getKey());
+		}
+		return new ListDelta<T>(epoch, version, this.version, added, removed);
+	}
+	
+	/**
+	 * Gets a page of the list, in the order entries were added
+	 * 
+	 * @Override
+	 * @param offset int
+	 * @param limit int
+	 * @return ArrayList<T>
+	 * @throws RemoteException
+	 */
+	public synchronized ArrayList<T> page(int offset, int limit) throws RemoteException {
+		int from = Math.max(0, Math.min(offset, list.size()));
+		int to = (int) Math.min((long) from + Math.max(0, limit), list.size());
+		return new ArrayList<T>(list.subList(from, to));
+	}
+	
+	/**
+	 * Gets the entries whose names start with a prefix, in name order
+	 * 
+	 * @Override
+	 * @param prefix String
+	 * @param limit int
+	 * @return ArrayList<T>
+	 * @throws RemoteException
+	 */
+	public synchronized ArrayList<T> withPrefix(String prefix, int limit) throws RemoteException {
+		ArrayList<T> matches = new ArrayList<T>();
+		for( T obj : byName.tailMap(prefix, true).values() ) {
+			if( matches.size() >= limit || !String.valueOf(obj).startsWith(prefix) )
+				break;
+			matches.add(obj);
+		}
+		return matches;
+	}
+	
+	/**
+	 * Subscribes to changes. The listener is sent batches of changes made after the given 
+	 * version until it unsubscribes or stops responding.
+	 * 
+	 * @Override
+	 * @param listener DirectoryListener<T>
+	 * @param version long : the version the listener already has
+	 * @return long : the list's current version
+	 * @throws RemoteException
+	 */
+	public long subscribe(DirectoryListener<T> listener, long version) throws RemoteException {
+		notifier().subscribe(listener, version);
+		return version();
+	}
+	
+	/**
+	 * Stops sending changes to a listener
+	 * 
+	 * @Override
+	 * @param listener DirectoryListener<T>
+	 * @return boolean : false if it wasn't subscribed
+	 * @throws RemoteException
+	 */
+	public boolean unsubscribe(DirectoryListener<T> listener) throws RemoteException {
+		return notifier().unsubscribe(listener);
+	}
+	
+	private synchronized DirectoryNotifier<T> notifier() {
+		if( notifier == null )
+			notifier = new DirectoryNotifier<T>(this);
+		return notifier;
+	}
+	
+	/**
+	 * One add or remove
+	 */
+	private static class Change<T> {
+		long version;
+		T obj;
+		boolean added;
+		
+		Change(long version, T obj, boolean added) {
+			this.version = version;
+			this.obj = obj;
+			this.added = added;
+		}
+	}
 }
@@ -1,6 +1,7 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * Interface for remote ArrayLists
@@ -8,4 +9,16 @@ import java.util.ArrayList;
 public interface RemoteListInterface<T> extends Remote {
 	public ArrayList<T> accessList() throws RemoteException;
 	public boolean addObject(T obj) throws RemoteException;
+	public boolean addObjects(Collection<T> objs) throws RemoteException;
+	public boolean removeObject(T obj) throws RemoteException;
+	public ArrayList<T> renewLeases(Collection<T> objs) throws RemoteException;
+	public long leaseDuration() throws RemoteException;
+	
+	public long version() throws RemoteException;
+	public ListDelta<T> changesSince(long version) throws RemoteException;
+	public ArrayList<T> page(int offset, int limit) throws RemoteException;
+	public ArrayList<T> withPrefix(String prefix, int limit) throws RemoteException;
+	
+	public long subscribe(DirectoryListener<T> listener, long version) throws RemoteException;
+	public boolean unsubscribe(DirectoryListener<T> listener) throws RemoteException;
 }
@@ -0,0 +1,128 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe snapshot files.
+ *
+ * A snapshot is written to a temporary file with a length and CRC32 header, then handed to the
+ * GroupCommit which fsyncs it and atomically renames it over the live file. The file it replaces is
+ * kept as a .bak so a corrupt or missing snapshot can fall back to the previous good one.
+ */
+public class SnapshotFile {
+
+	public static final int MAGIC = 0x534D5346; // "SMSF"
+	public static final String TEMP_SUFFIX = ".tmp";
+	public static final String BACKUP_SUFFIX = ".bak";
+
+	// Header is magic, length and checksum
+	private static final int HEADER_SIZE = 4 + 4 + 8;
+
+	// Keeps temp file names unique when the same entity is saved twice in one group
+	private static final AtomicLong sequence = new AtomicLong();
+
+	private SnapshotFile() {}
+
+	/**
+	 * Writes a snapshot. The new contents replace the live file when the current group commits.
+	 *
+	 * @param target File : the live file
+	 * @param data byte[]
+	 * @param onCommit Runnable : run once the snapshot is durable (may be null)
+	 * @throws IOException
+	 */
+	public static void write(File target, byte[] data, Runnable onCommit) throws IOException {
+		File temp = new File(target.getPath() + "." + sequence.incrementAndGet() + TEMP_SUFFIX);
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(data.length);
+			out.writeLong(crc.getValue());
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		GroupCommit.getInstance().add(temp, target, onCommit);
+	}
+
+	/**
+	 * Reads a snapshot, checking its checksum. If the live file is missing or corrupt the
+	 * previous snapshot is tried instead.
+	 *
+	 * @param target File
+	 * @return byte[]
+	 * @throws IOException if neither the live file nor the backup can be read
+	 */
+	public static byte[] read(File target) throws IOException {
+		try {
+			return readVerified(target);
+		} catch (IOException e) {
+			File backup = backupOf(target);
+			if( !backup.exists() )
+				throw e;
+
+			System.err.println("Snapshot " + target + " is unreadable (" + e.getMessage() + ") - using previous snapshot.");
+			return readVerified(backup);
+		}
+	}
+
+	/**
+	 * Gets the backup file for a snapshot
+	 *
+	 * @param target File
+	 * @return File
+	 */
+	public static File backupOf(File target) {
+		return new File(target.getPath() + BACKUP_SUFFIX);
+	}
+
+	/**
+	 * Reads a single file and checks it. Files written before snapshots had a header are
+	 * returned as they are and left to the decoder to validate - anything else without the
+	 * header is taken to be damaged, so read() falls back to the backup.
+	 */
+	private static byte[] readVerified(File f) throws IOException {
+		byte[] contents = new byte[(int) f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(contents);
+		} finally {
+			in.close();
+		}
+
+		if( contents.length < HEADER_SIZE )
+			throw new IOException("Truncated snapshot");
+
+		DataInputStream header = new DataInputStream(new ByteArrayInputStream(contents));
+		if( header.readInt() != MAGIC ) {
+			if( EntityCodec.isEncoding(contents) )
+				return contents;
+			throw new IOException("Bad snapshot header");
+		}
+
+		int length = header.readInt();
+		long checksum = header.readLong();
+		if( length != contents.length - HEADER_SIZE )
+			throw new IOException("Truncated snapshot");
+
+		CRC32 crc = new CRC32();
+		crc.update(contents, HEADER_SIZE, length);
+		if( crc.getValue() != checksum )
+			throw new IOException("Snapshot checksum mismatch");
+
+		byte[] data = new byte[length];
+		System.arraycopy(contents, HEADER_SIZE, data, 0, length);
+		return data;
+	}
+}
@@ -0,0 +1,163 @@
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of remote stubs, used in place of Naming.lookup.
+ *
+ * A stub stays cached until a call through it fails with a connection error, when the entity
+ * invalidates it and the next lookup goes back to the registry. Concurrent misses for the same
+ * name wait on a single registry lookup rather than each making their own.
+ */
+public class StubResolver {
+
+	private static final String PREFIX = "rmi://localhost/";
+
+	// Longest a remote call waits for its answer - override with -Dsun.rmi.transport.tcp.responseTimeout=ms
+	public static final long DEFAULT_RESPONSE_TIMEOUT = 30000;
+
+	private static final ConcurrentMap<String, FutureTask<Remote>> stubs = new ConcurrentHashMap<String, FutureTask<Remote>>();
+
+	// Metrics
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong invalidations = new AtomicLong();
+
+	private StubResolver() {}
+
+	/**
+	 * Bounds how long any remote call from this JVM waits for its answer, so a hung entity can't
+	 * hold a thread forever. RMI reads the setting once, so this is called first thing in main().
+	 */
+	public static void limitResponseTime() {
+		if( System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null )
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout", Long.toString(DEFAULT_RESPONSE_TIMEOUT));
+	}
+
+	/**
+	 * Gets the stub bound under a name, from the cache if possible
+	 *
+	 * @param name String : with or without the rmi://localhost/ prefix
+	 * @return Remote
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public static Remote lookup(String name) throws MalformedURLException, RemoteException, NotBoundException {
+		final String key = keyOf(name);
+
+		FutureTask<Remote> task = stubs.get(key);
+		if( task == null ) {
+			FutureTask<Remote> created = new FutureTask<Remote>(new Callable<Remote>() {
+				public Remote call() throws Exception {
+					return Naming.lookup(PREFIX + key);
+				}
+			});
+			task = stubs.putIfAbsent(key, created);
+			if( task == null ) {
+				// We're the one doing the lookup - everyone else waits on it
+				misses.incrementAndGet();
+				task = created;
+				task.run();
+			} else {
+				hits.incrementAndGet();
+			}
+		} else {
+			hits.incrementAndGet();
+		}
+
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted looking up " + key, e);
+		} catch (ExecutionException e) {
+			// Don't cache failures
+			stubs.remove(key, task);
+
+			Throwable cause = e.getCause();
+			if( cause instanceof RemoteException )
+				throw (RemoteException) cause;
+			if( cause instanceof NotBoundException )
+				throw (NotBoundException) cause;
+			if( cause instanceof MalformedURLException )
+				throw (MalformedURLException) cause;
+			throw new RemoteException("Unable to look up " + key, cause);
+		}
+	}
+
+	/**
+	 * Drops a cached stub so the next lookup goes to the registry
+	 *
+	 * @param name String
+	 */
+	public static void invalidate(String name) {
+		if( name != null && stubs.remove(keyOf(name)) != null )
+			invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Drops a cached stub if a call through it failed because of the connection (rather than
+	 * an error on a live server)
+	 *
+	 * @param name String
+	 * @param e Exception
+	 */
+	public static void failed(String name, Exception e) {
+		if( e instanceof NotBoundException 
+				|| (e instanceof RemoteException && !(e instanceof ServerException) && !(e instanceof ServerError)) )
+			invalidate(name);
+	}
+
+	/**
+	 * Gets the number of lookups answered from the cache
+	 *
+	 * @return long
+	 */
+	public static long hits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of lookups that went to the registry
+	 *
+	 * @return long
+	 */
+	public static long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of stubs dropped after failures
+	 *
+	 * @return long
+	 */
+	public static long invalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Describes the cache's activity
+	 *
+	 * @return String
+	 */
+	public static String stats() {
+		long h = hits.get(), m = misses.get();
+		return "cached=" + stubs.size() + " hits=" + h + " misses=" + m + " invalidations=" + invalidations.get()
+				+ " hitRate=" + (h + m == 0 ? 0 : (h * 100 / (h + m))) + "%";
+	}
+
+	private static String keyOf(String name) {
+		return name.startsWith(PREFIX) ? name.substring(PREFIX.length()) : name;
+	}
+}
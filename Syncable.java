@@ -0,0 +1,8 @@
+import java.io.IOException;
+
+/**
+ * A file with appends that the GroupCommit forces to disk in batches
+ */
+public interface Syncable {
+	public void sync() throws IOException;
+}
@@ -7,6 +7,11 @@ public class Tariff implements Serializable {
 
 	private static final long serialVersionUID = -5851392807798356425L;
 	
+	// Of every SHARES units used, DAY_SHARES are charged at the day cost and NIGHT_SHARES at night
+	public static final int DAY_SHARES = 3;
+	public static final int NIGHT_SHARES = 1;
+	public static final int SHARES = DAY_SHARES + NIGHT_SHARES;
+	
 	private int dayCost, nightCost, discount, threshold;
 	
 	/**
@@ -35,6 +40,66 @@ public class Tariff implements Serializable {
 				+ (discount*100) + "% after using " + threshold + " units.";  
 	}
 	
+	/**
+	 * Prices a meter's readings on this tariff. Units are attributed to day and night in fixed 
+	 * shares (see DAY_SHARES and NIGHT_SHARES) - the average of the broker's old random split - so
+	 * the same readings always cost the same. The discount applies to readings at or above the 
+	 * threshold.
+	 * 
+	 * @param usage UsageSummary
+	 * @return long
+	 */
+	public long price(UsageSummary usage) {
+		double perUnit = (double) unitCost() / SHARES;
+		long below = usage.sumBelow(threshold);
+		long from = usage.getTotal() - below;
+		return Math.round(perUnit * below + perUnit * discount * from);
+	}
+	
+	/**
+	 * Gets SHARES times the cost of some usage on this tariff, exactly - for comparing tariffs
+	 * without price()'s rounding
+	 * 
+	 * @param total long : units in all readings
+	 * @param from long : units in readings at or above the threshold
+	 * @return long
+	 */
+	public long scaledCost(long total, long from) {
+		long perUnit = unitCost();
+		return perUnit * total + perUnit * (discount - 1) * from;
+	}
+	
+	/**
+	 * Gets the cost of SHARES units, attributed to day and night
+	 * 
+	 * @return long
+	 */
+	public long unitCost() {
+		return (long) DAY_SHARES * dayCost + (long) NIGHT_SHARES * nightCost;
+	}
+	
+	/**
+	 * Tariffs with the same costs, discount and threshold are equal
+	 * 
+	 * @Override
+	 * @param o Object
+	 * @return boolean
+	 */
+	public boolean equals(Object o) {
+		if( !(o instanceof Tariff) )
+			return false;
+		Tariff t = (Tariff) o;
+		return dayCost == t.dayCost && nightCost == t.nightCost && discount == t.discount && threshold == t.threshold;
+	}
+	
+	/**
+	 * @Override
+	 * @return int
+	 */
+	public int hashCode() {
+		return ((dayCost * 31 + nightCost) * 31 + discount) * 31 + threshold;
+	}
+	
 	/**
 	 * Accessor for the dayCost variable
 	 * 
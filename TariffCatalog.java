@@ -0,0 +1,224 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Central catalog of every power company's tariff.
+ *
+ * Power companies publish their tariff whenever it changes. Brokers fetch the whole catalog once
+ * as an immutable snapshot and after that only ask for the tariffs changed since their version,
+ * rather than calling each company in turn. Companies that leave the company directory leave the
+ * catalog too (see companyListener), and are put back with their last tariff if they return.
+ */
+public class TariffCatalog extends UnicastRemoteObject implements TariffCatalogInterface {
+
+	private static final long serialVersionUID = 5178204612904433285L;
+
+	private HashMap<String, Tariff> tariffs;
+
+	// Version at which each company's tariff last changed, or it left the catalog
+	private HashMap<String, Long> changed;
+
+	// Last tariffs of companies that have left the directory - null in catalogs saved before
+	private HashMap<String, Tariff> withdrawn;
+
+	private long epoch;
+	private long version;
+
+	/**
+	 * Constructor
+	 *
+	 * @throws RemoteException
+	 */
+	protected TariffCatalog() throws RemoteException {
+		super();
+		this.tariffs = new HashMap<String, Tariff>();
+		this.changed = new HashMap<String, Long>();
+		while( epoch == 0 )
+			epoch = new Random().nextLong();
+
+		DataPersistence dp = new DataPersistence();
+		dp.saveTariffCatalog(this);
+	}
+
+	/**
+	 * Publishes a company's tariff
+	 *
+	 * @Override
+	 * @param company String
+	 * @param tariff Tariff
+	 * @return long : the catalog's version
+	 * @throws RemoteException
+	 */
+	public long publish(String company, Tariff tariff) throws RemoteException {
+		Map<String, Tariff> one = new HashMap<String, Tariff>();
+		one.put(company, tariff);
+		return publishAll(one);
+	}
+
+	/**
+	 * Publishes many companies' tariffs at once (e.g. a bulk restore)
+	 *
+	 * @Override
+	 * @param tariffs Map<String, Tariff>
+	 * @return long : the catalog's version
+	 * @throws RemoteException
+	 */
+	public synchronized long publishAll(Map<String, Tariff> tariffs) throws RemoteException {
+		boolean changes = false;
+		for( Map.Entry<String, Tariff> e : tariffs.entrySet() ) {
+			withdrawn().remove(e.getKey());
+			
+			// Republishing the same tariff isn't a change
+			if( e.getValue().equals(this.tariffs.get(e.getKey())) )
+				continue;
+
+			version++;
+			this.tariffs.put(e.getKey(), e.getValue());
+			changed.put(e.getKey(), version);
+			changes = true;
+		}
+
+		if( changes ) {
+			DataPersistence dp = new DataPersistence();
+			dp.scheduleSaveTariffCatalog(this);
+		}
+		return version;
+	}
+
+	/**
+	 * Takes companies that have left the directory out of the catalog, keeping their tariffs in
+	 * case they come back
+	 *
+	 * @param companies Collection<String>
+	 */
+	synchronized void withdraw(Collection<String> companies) {
+		boolean changes = false;
+		for( String company : companies ) {
+			Tariff t = tariffs.remove(company);
+			if( t == null )
+				continue;
+
+			version++;
+			withdrawn().put(company, t);
+			changed.put(company, version);
+			changes = true;
+		}
+
+		if( changes ) {
+			DataPersistence dp = new DataPersistence();
+			dp.scheduleSaveTariffCatalog(this);
+		}
+	}
+
+	/**
+	 * Puts companies that have come back to the directory into the catalog again with their last tariff
+	 *
+	 * @param companies Collection<String>
+	 */
+	synchronized void restore(Collection<String> companies) {
+		Map<String, Tariff> returned = new HashMap<String, Tariff>();
+		for( String company : companies ) {
+			Tariff t = withdrawn().get(company);
+			if( t != null && !tariffs.containsKey(company) )
+				returned.put(company, t);
+		}
+		if( returned.isEmpty() )
+			return;
+
+		try {
+			publishAll(returned);
+		} catch (RemoteException e) {
+			// A local call - can't happen
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets a listener keeping the catalog in step with the company directory - subscribe it
+	 * to the company list from version 0, so companies that left while we were down go too
+	 *
+	 * @return DirectoryListener<String>
+	 */
+	public DirectoryListener<String> companyListener() {
+		return new DirectoryListener<String>() {
+			public void directoryChanged(ListDelta<String> delta) {
+				if( delta.getFromVersion() == 0 ) {
+					// The whole directory - anyone we have who isn't in it has gone
+					Set<String> listed = new HashSet<String>(delta.getAdded());
+					List<String> gone = new ArrayList<String>();
+					synchronized( TariffCatalog.this ) {
+						for( String company : tariffs.keySet() ) {
+							if( !listed.contains(company) )
+								gone.add(company);
+						}
+					}
+					withdraw(gone);
+				} else {
+					withdraw(delta.getRemoved());
+				}
+				restore(delta.getAdded());
+			}
+		};
+	}
+
+	/**
+	 * Gets the withdrawn tariffs, creating the map for catalogs saved before there were any
+	 *
+	 * @return Map<String, Tariff>
+	 */
+	private Map<String, Tariff> withdrawn() {
+		if( withdrawn == null )
+			withdrawn = new HashMap<String, Tariff>();
+		return withdrawn;
+	}
+
+	/**
+	 * Gets every tariff
+	 *
+	 * @Override
+	 * @return TariffSnapshot
+	 * @throws RemoteException
+	 */
+	public synchronized TariffSnapshot snapshot() throws RemoteException {
+		return new TariffSnapshot(epoch, 0, version, tariffs);
+	}
+
+	/**
+	 * Gets the tariffs changed since a version - or every tariff if the version isn't one of ours
+	 *
+	 * @Override
+	 * @param version long
+	 * @return TariffSnapshot
+	 * @throws RemoteException
+	 */
+	public synchronized TariffSnapshot changesSince(long version) throws RemoteException {
+		if( version <= 0 || version > this.version )
+			return snapshot();
+
+		Map<String, Tariff> delta = new HashMap<String, Tariff>();
+		for( Map.Entry<String, Long> e : changed.entrySet() ) {
+			if( e.getValue() > version )
+				delta.put(e.getKey(), tariffs.get(e.getKey()));
+		}
+		return new TariffSnapshot(epoch, version, this.version, delta);
+	}
+
+	/**
+	 * Gets the catalog's version
+	 *
+	 * @Override
+	 * @return long
+	 * @throws RemoteException
+	 */
+	public synchronized long version() throws RemoteException {
+		return version;
+	}
+}
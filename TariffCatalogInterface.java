@@ -0,0 +1,16 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Map;
+
+/**
+ * Remote interface for the central server's tariff catalog
+ */
+public interface TariffCatalogInterface extends Remote {
+	
+	public long publish(String company, Tariff tariff) throws RemoteException;
+	public long publishAll(Map<String, Tariff> tariffs) throws RemoteException;
+	
+	public TariffSnapshot snapshot() throws RemoteException;
+	public TariffSnapshot changesSince(long version) throws RemoteException;
+	public long version() throws RemoteException;
+}
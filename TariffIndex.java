@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index over a set of tariffs that finds the cheapest company for a usage summary without
+ * pricing every tariff.
+ *
+ * For a summary with total T and F units in readings at or above a tariff's threshold, SHARES times
+ * the tariff's cost (see Tariff.scaledCost) is A*T + A*(discount-1)*F, where A = Tariff.unitCost().
+ * For tariffs sharing a threshold that's a straight line in F/T, so each threshold group keeps
+ * the lower envelope of its lines and is queried by binary search. A query costs one pass over
+ * the summary plus a logarithmic search per distinct threshold. A changed tariff only marks its
+ * group for rebuilding, which is a single pass over the group's lines - they're kept sorted.
+ */
+public class TariffIndex {
+
+	// Tariffs by company
+	private Map<String, Tariff> tariffs = new HashMap<String, Tariff>();
+
+	// Companies grouped by threshold
+	private TreeMap<Integer, Group> groups = new TreeMap<Integer, Group>();
+
+	// Thresholds and groups in ascending order - null when the set of groups has changed
+	private int[] thresholds;
+	private Group[] ordered;
+
+	/**
+	 * Adds, changes or removes a company's tariff
+	 *
+	 * @param company String
+	 * @param t Tariff : or null to remove the company
+	 * @return boolean : true if the index changed
+	 */
+	public synchronized boolean update(String company, Tariff t) {
+		Tariff old = tariffs.get(company);
+		if( t == null ? old == null : t.equals(old) )
+			return false;
+
+		if( old != null ) {
+			Group group = groups.get(old.getThreshold());
+			group.remove(company);
+			if( group.isEmpty() ) {
+				groups.remove(old.getThreshold());
+				thresholds = null;
+			}
+			tariffs.remove(company);
+		}
+
+		if( t != null ) {
+			Group group = groups.get(t.getThreshold());
+			if( group == null ) {
+				group = new Group();
+				groups.put(t.getThreshold(), group);
+				thresholds = null;
+			}
+			group.add(new Line(company, t));
+			tariffs.put(company, t);
+		}
+		return true;
+	}
+
+	/**
+	 * Brings the index in line with a set of tariffs, changing only what differs
+	 *
+	 * @param current Map<String, Tariff>
+	 * @return int : number of companies added, changed or removed
+	 */
+	public synchronized int sync(Map<String, Tariff> current) {
+		int changed = 0;
+		for( Map.Entry<String, Tariff> e : current.entrySet() ) {
+			if( update(e.getKey(), e.getValue()) )
+				changed++;
+		}
+
+		// Everything in current is now indexed, so any extra companies have gone
+		if( tariffs.size() > current.size() ) {
+			List<String> gone = new ArrayList<String>();
+			for( String company : tariffs.keySet() ) {
+				if( !current.containsKey(company) )
+					gone.add(company);
+			}
+			for( String company : gone )
+				update(company, null);
+			changed += gone.size();
+		}
+		return changed;
+	}
+
+	/**
+	 * Finds the company whose tariff would cost least for a summary
+	 *
+	 * @param usage UsageSummary
+	 * @return String : or null if the index is empty
+	 */
+	public synchronized String cheapest(UsageSummary usage) {
+		if( groups.isEmpty() )
+			return null;
+		if( thresholds == null ) {
+			thresholds = new int[groups.size()];
+			ordered = new Group[groups.size()];
+			int i = 0;
+			for( Map.Entry<Integer, Group> e : groups.entrySet() ) {
+				thresholds[i] = e.getKey();
+				ordered[i++] = e.getValue();
+			}
+		}
+
+		long total = usage.getTotal();
+		long[] below = usage.sumsBelow(thresholds);
+
+		Line best = null;
+		long bestCost = Long.MAX_VALUE;
+		for( int i = 0; i < ordered.length; i++ ) {
+			long from = total - below[i];
+			Line line = ordered[i].cheapest(total, from);
+			long cost = line.cost(total, from);
+			if( best == null || cost < bestCost ) {
+				best = line;
+				bestCost = cost;
+			}
+		}
+		return best.company;
+	}
+
+	/**
+	 * Gets the number of companies indexed
+	 *
+	 * @return int
+	 */
+	public synchronized int size() {
+		return tariffs.size();
+	}
+
+	/**
+	 * A tariff's cost as a line: SHARES times the cost is a*total + b*from
+	 */
+	private static class Line {
+		String company;
+		long a;
+		long b;
+
+		Line(String company, Tariff t) {
+			this.company = company;
+			this.a = t.unitCost();
+			this.b = a * (t.getDiscount() - 1);
+		}
+
+		long cost(long total, long from) {
+			return a * total + b * from;
+		}
+	}
+
+	/**
+	 * Companies sharing a threshold, with the lower envelope of their lines
+	 */
+	private static class Group {
+		private Map<String, Line> lines = new HashMap<String, Line>();
+
+		// Lines by slope descending, then cost - kept sorted so rebuilding is a single pass
+		private TreeSet<Line> sorted = new TreeSet<Line>(new Comparator<Line>() {
+			public int compare(Line l1, Line l2) {
+				if( l1.b != l2.b )
+					return l1.b > l2.b ? -1 : 1;
+				if( l1.a != l2.a )
+					return l1.a < l2.a ? -1 : 1;
+				return l1.company.compareTo(l2.company);
+			}
+		});
+
+		// Lines on the lower envelope, slope descending - null when it needs rebuilding
+		private Line[] hull;
+
+		void add(Line line) {
+			lines.put(line.company, line);
+			sorted.add(line);
+			hull = null;
+		}
+
+		void remove(String company) {
+			Line line = lines.remove(company);
+			if( line != null )
+				sorted.remove(line);
+			hull = null;
+		}
+
+		boolean isEmpty() {
+			return lines.isEmpty();
+		}
+
+		/**
+		 * Finds the cheapest line where from/total is the share of units at or above the threshold
+		 */
+		Line cheapest(long total, long from) {
+			if( hull == null )
+				hull = build();
+
+			// Costs along the envelope fall then rise - find where they stop falling
+			int low = 0, high = hull.length - 1;
+			while( low < high ) {
+				int middle = (low + high) >>> 1;
+				if( hull[middle].cost(total, from) <= hull[middle + 1].cost(total, from) )
+					high = middle;
+				else
+					low = middle + 1;
+			}
+			return hull[low];
+		}
+
+		/**
+		 * Builds the lower envelope: lines by slope descending, dropping any never cheapest
+		 */
+		private Line[] build() {
+			Line[] envelope = new Line[sorted.size()];
+			int size = 0;
+			for( Line line : sorted ) {
+				// Same slope as the last line but no cheaper
+				if( size > 0 && envelope[size - 1].b == line.b )
+					continue;
+				while( size >= 2 && redundant(envelope[size - 2], envelope[size - 1], line) )
+					size--;
+				envelope[size++] = line;
+			}
+			return Arrays.copyOf(envelope, size);
+		}
+
+		/**
+		 * Checks if l2 is never below both l1 and l3 (slopes l1 > l2 > l3)
+		 */
+		private static boolean redundant(Line l1, Line l2, Line l3) {
+			// l3 crosses l1 no later than l2 does
+			return (l3.a - l1.a) * (l1.b - l2.b) <= (l2.a - l1.a) * (l1.b - l3.b);
+		}
+	}
+}
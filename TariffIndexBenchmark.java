@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares TariffIndex against pricing every tariff - time per quote and time to apply a changed
+ * tariff - and checks that both pick a tariff of the same cost for every quote.
+ *
+ * Usage: java TariffIndexBenchmark [companies] [quotes] [readings]
+ */
+public class TariffIndexBenchmark {
+
+	// Thresholds companies choose between
+	private static final int[] THRESHOLDS = { 100, 200, 250, 300, 400, 500, 750, 1000, 2000, 5000 };
+
+	public static void main(String[] args) {
+		int companyCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int quoteCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int readingCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		Random r = new Random(42);
+
+		Map<String, Tariff> tariffs = new HashMap<String, Tariff>();
+		List<String> companies = new ArrayList<String>();
+		for( int i = 0; i < companyCount; i++ ) {
+			String company = "Company_" + i;
+			companies.add(company);
+			tariffs.put(company, randomTariff(r));
+		}
+
+		// Customers with different habits - some mostly small readings, some mostly large
+		List<UsageSummary> customers = new ArrayList<UsageSummary>();
+		for( int i = 0; i < quoteCount; i++ ) {
+			UsageSummary usage = new UsageSummary();
+			int scale = 50 + r.nextInt(3000);
+			for( int j = 0; j < readingCount; j++ )
+				usage.add(r.nextInt(scale));
+			customers.add(usage);
+		}
+
+		System.out.println("companies=" + companyCount + " quotes=" + quoteCount + " readings=" + readingCount);
+
+		// Build
+		long start = System.nanoTime();
+		TariffIndex index = new TariffIndex();
+		index.sync(tariffs);
+		String first = index.cheapest(customers.get(0));
+		long build = System.nanoTime() - start;
+
+		// Warm up
+		for( int i = 0; i < 3; i++ ) {
+			for( UsageSummary usage : customers ) {
+				priceAll(companies, tariffs, usage);
+				index.cheapest(usage);
+			}
+		}
+
+		// Pricing every tariff
+		start = System.nanoTime();
+		String[] priced = new String[quoteCount];
+		for( int i = 0; i < quoteCount; i++ )
+			priced[i] = priceAll(companies, tariffs, customers.get(i));
+		long pricing = (System.nanoTime() - start) / quoteCount;
+
+		// Through the index
+		start = System.nanoTime();
+		String[] indexed = new String[quoteCount];
+		for( int i = 0; i < quoteCount; i++ )
+			indexed[i] = index.cheapest(customers.get(i));
+		long indexing = (System.nanoTime() - start) / quoteCount;
+
+		int mismatches = 0;
+		for( int i = 0; i < quoteCount; i++ ) {
+			UsageSummary usage = customers.get(i);
+			if( tariffs.get(priced[i]).price(usage) != tariffs.get(indexed[i]).price(usage) )
+				mismatches++;
+		}
+
+		// One company changing its tariff at a time, each followed by a quote
+		long changing = 0;
+		for( int i = 0; i < quoteCount; i++ ) {
+			String company = companies.get(r.nextInt(companyCount));
+			Tariff t = randomTariff(r);
+			tariffs.put(company, t);
+			UsageSummary usage = customers.get(i);
+
+			start = System.nanoTime();
+			index.update(company, t);
+			String best = index.cheapest(usage);
+			changing += System.nanoTime() - start;
+
+			if( tariffs.get(priceAll(companies, tariffs, usage)).price(usage) != tariffs.get(best).price(usage) )
+				mismatches++;
+		}
+		changing /= quoteCount;
+
+		System.out.println(String.format("%-28s %12s", "", "time(us)"));
+		System.out.println(String.format("%-28s %12d", "build index", build / 1000));
+		System.out.println(String.format("%-28s %12d", "quote, pricing every tariff", pricing / 1000));
+		System.out.println(String.format("%-28s %12d", "quote, index", indexing / 1000));
+		System.out.println(String.format("%-28s %12d", "change + quote, index", changing / 1000));
+		System.out.println("first quote: " + first);
+		System.out.println(mismatches == 0 ? "index agrees with pricing every tariff" : mismatches + " quotes disagree!");
+	}
+
+	/**
+	 * The broker's loop - prices every tariff and keeps the cheapest
+	 */
+	private static String priceAll(List<String> companies, Map<String, Tariff> tariffs, UsageSummary usage) {
+		long best = Long.MAX_VALUE;
+		String bestName = null;
+		for( String company : companies ) {
+			long total = tariffs.get(company).price(usage);
+			if( total < best ) {
+				best = total;
+				bestName = company;
+			}
+		}
+		return bestName;
+	}
+
+	private static Tariff randomTariff(Random r) {
+		return new Tariff(5 + r.nextInt(30), 2 + r.nextInt(15), r.nextInt(3), THRESHOLDS[r.nextInt(THRESHOLDS.length)]);
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Helper class, an immutable copy of the tariff catalog (or of the tariffs changed since a version).
+ * In a set of changes, a company mapped to null has left the catalog.
+ */
+public class TariffSnapshot implements Serializable {
+
+	private static final long serialVersionUID = -2390547130716236613L;
+
+	private long epoch;
+	private long fromVersion;
+	private long version;
+	private Map<String, Tariff> tariffs;
+
+	/**
+	 * Constructor
+	 *
+	 * @param epoch long : identifies the catalog - versions only mean anything within one epoch
+	 * @param fromVersion long : version the changes apply on top of - 0 means this is every tariff
+	 * @param version long
+	 * @param tariffs Map<String, Tariff> : copied
+	 */
+	public TariffSnapshot(long epoch, long fromVersion, long version, Map<String, Tariff> tariffs) {
+		this.epoch = epoch;
+		this.fromVersion = fromVersion;
+		this.version = version;
+		this.tariffs = Collections.unmodifiableMap(new HashMap<String, Tariff>(tariffs));
+	}
+
+	/**
+	 * Applies a set of changes, giving a new snapshot
+	 *
+	 * @param delta TariffSnapshot
+	 * @return TariffSnapshot : or null if the changes don't follow on from this snapshot
+	 */
+	public TariffSnapshot merge(TariffSnapshot delta) {
+		if( delta.isComplete() )
+			return delta;
+		if( delta.epoch != epoch || delta.fromVersion != version )
+			return null;
+		if( delta.tariffs.isEmpty() )
+			return this;
+
+		Map<String, Tariff> merged = new HashMap<String, Tariff>(tariffs);
+		for( Map.Entry<String, Tariff> e : delta.tariffs.entrySet() ) {
+			if( e.getValue() == null )
+				merged.remove(e.getKey());
+			else
+				merged.put(e.getKey(), e.getValue());
+		}
+		return new TariffSnapshot(epoch, 0, delta.version, merged);
+	}
+
+	/**
+	 * Checks if the snapshot holds every tariff rather than just changes
+	 *
+	 * @return boolean
+	 */
+	public boolean isComplete() {
+		return fromVersion == 0;
+	}
+
+	/**
+	 * Gets a company's tariff
+	 *
+	 * @param company String
+	 * @return Tariff : or null if the company hasn't published one (or has left, in a set of changes)
+	 */
+	public Tariff get(String company) {
+		return tariffs.get(company);
+	}
+
+	/**
+	 * Gets the companies in the snapshot
+	 *
+	 * @return Set<String>
+	 */
+	public Set<String> companies() {
+		return tariffs.keySet();
+	}
+
+	/**
+	 * Accessor for the tariffs variable
+	 *
+	 * @return Map<String, Tariff> : unmodifiable
+	 */
+	public Map<String, Tariff> getTariffs() {
+		return tariffs;
+	}
+
+	/**
+	 * Accessor for the epoch variable
+	 *
+	 * @return long
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Accessor for the version variable
+	 *
+	 * @return long
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
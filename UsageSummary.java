@@ -0,0 +1,333 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Fixed-size summary of a meter's readings, kept up to date as readings arrive.
+ *
+ * Holds the number of readings, their total, and a histogram with a count and a sum per bucket.
+ * Buckets are one unit wide below EXACT_LIMIT - above every tariff threshold (at most 599) - and
+ * log-linear above it, SUB_BUCKETS to each power of two. A broker can price a tariff from this in
+ * time independent of how long the meter's history is. Sums either side of a threshold are exact
+ * below EXACT_LIMIT and interpolated within one bucket above it.
+ */
+public class UsageSummary implements Serializable {
+
+	private static final long serialVersionUID = 3310725149786204617L;
+
+	// Readings below this have a bucket each
+	public static final int EXACT_LIMIT = 1024;
+
+	// Buckets per power of two above EXACT_LIMIT
+	public static final int SUB_BUCKETS = 32;
+
+	private static final int EXACT_BITS = 10;	// log2(EXACT_LIMIT)
+	private static final int SUB_BITS = 5;		// log2(SUB_BUCKETS)
+	private static final int BUCKETS = buckets(EXACT_BITS);
+
+	// Summaries written before codec version 6 only had a bucket each below 512
+	private static final int LEGACY_EXACT_BITS = 9;
+
+	// Layout the buckets were sent in - missing (0) from summaries sent with the legacy layout
+	private int exactBits;
+
+	private transient int count;
+	private transient long total;
+	private transient int[] counts;
+	private transient long[] sums;
+
+	// Fingerprint of the buckets - worked out when first asked for after a change
+	private transient long fingerprint;
+	private transient boolean fingerprinted;
+
+	/**
+	 * Constructor - an empty summary
+	 */
+	public UsageSummary() {
+		counts = new int[BUCKETS];
+		sums = new long[BUCKETS];
+		exactBits = EXACT_BITS;
+	}
+
+	/**
+	 * Builds a summary of a list of readings
+	 *
+	 * @param readings List<Integer>
+	 * @return UsageSummary
+	 */
+	public static UsageSummary of(List<Integer> readings) {
+		UsageSummary summary = new UsageSummary();
+		for( Integer reading : readings )
+			summary.add(reading);
+		return summary;
+	}
+
+	/**
+	 * Builds a summary of a buffer of readings
+	 *
+	 * @param readings ReadingBuffer
+	 * @return UsageSummary
+	 */
+	public static UsageSummary of(ReadingBuffer readings) {
+		UsageSummary summary = new UsageSummary();
+		for( int i = 0; i < readings.size(); i++ )
+			summary.add(readings.get(i));
+		return summary;
+	}
+
+	/**
+	 * Adds a reading
+	 *
+	 * @param reading int : negative readings count as 0
+	 */
+	public synchronized void add(int reading) {
+		reading = Math.max(reading, 0);
+		int bucket = bucketOf(reading);
+		counts[bucket]++;
+		sums[bucket] += reading;
+		count++;
+		total += reading;
+		fingerprinted = false;
+	}
+
+	/**
+	 * Gets the number of readings summarised
+	 *
+	 * @return int
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the sum of every reading
+	 *
+	 * @return long
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Gets a fingerprint of the summary - summaries of the same readings have the same fingerprint,
+	 * and any new reading changes it
+	 *
+	 * @return long
+	 */
+	public synchronized long fingerprint() {
+		if( !fingerprinted ) {
+			long h = QuoteCache.mix(count ^ (total << 20));
+			for( int i = 0; i < BUCKETS; i++ ) {
+				if( counts[i] != 0 )
+					h = QuoteCache.mix(h ^ ((long) i << 32 | counts[i])) + sums[i];
+			}
+			fingerprint = QuoteCache.mix(h);
+			fingerprinted = true;
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Gets the sum of the readings below a threshold
+	 *
+	 * @param threshold int
+	 * @return long
+	 */
+	public synchronized long sumBelow(int threshold) {
+		if( threshold <= 0 )
+			return 0;
+
+		int bucket = bucketOf(threshold);
+		long sum = 0;
+		for( int i = 0; i < bucket; i++ )
+			sum += sums[i];
+		return sum + partBelow(bucket, threshold);
+	}
+
+	/**
+	 * Gets the sums of the readings below several thresholds in one pass
+	 *
+	 * @param thresholds int[] : in ascending order
+	 * @return long[]
+	 */
+	public synchronized long[] sumsBelow(int[] thresholds) {
+		long[] below = new long[thresholds.length];
+		long sum = 0;
+		int next = 0;
+		for( int i = 0; i < thresholds.length; i++ ) {
+			if( thresholds[i] <= 0 )
+				continue;
+			int bucket = bucketOf(thresholds[i]);
+			while( next < bucket )
+				sum += sums[next++];
+			below[i] = sum + partBelow(bucket, thresholds[i]);
+		}
+		return below;
+	}
+
+	/**
+	 * Gets the sum of the readings at or above a threshold
+	 *
+	 * @param threshold int
+	 * @return long
+	 */
+	public synchronized long sumFrom(int threshold) {
+		return total - sumBelow(threshold);
+	}
+
+	/**
+	 * Writes the summary, skipping empty buckets
+	 *
+	 * @param out DataOutput
+	 * @throws IOException
+	 */
+	public synchronized void write(DataOutput out) throws IOException {
+		int used = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			if( counts[i] != 0 )
+				used++;
+		}
+
+		EntityCodec.writeVarint(out, used);
+		for( int i = 0; i < BUCKETS; i++ ) {
+			if( counts[i] != 0 ) {
+				EntityCodec.writeVarint(out, i);
+				EntityCodec.writeVarint(out, counts[i]);
+				out.writeLong(sums[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a summary written by write()
+	 *
+	 * @param in DataInput
+	 * @return UsageSummary
+	 * @throws IOException
+	 */
+	public static UsageSummary read(DataInput in) throws IOException {
+		UsageSummary summary = new UsageSummary();
+		summary.readBuckets(in, EXACT_BITS);
+		return summary;
+	}
+
+	/**
+	 * Reads a summary written before codec version 6, with a bucket each only below 512. Totals
+	 * and the sum of each old bucket are kept exactly; the readings of an old 16-wide bucket
+	 * between 512 and 1024 are all counted at their mean, so a threshold inside one of those
+	 * ranges can misplace at most that bucket's sum - the same error the old layout had.
+	 *
+	 * @param in DataInput
+	 * @return UsageSummary
+	 * @throws IOException
+	 */
+	public static UsageSummary readLegacy(DataInput in) throws IOException {
+		UsageSummary summary = new UsageSummary();
+		summary.readBuckets(in, LEGACY_EXACT_BITS);
+		return summary;
+	}
+
+	/**
+	 * Reads buckets written with a given layout into this summary's layout
+	 */
+	private void readBuckets(DataInput in, int layout) throws IOException {
+		int used = EntityCodec.readVarint(in);
+		for( int i = 0; i < used; i++ ) {
+			int bucket = EntityCodec.readVarint(in);
+			if( bucket < 0 || bucket >= buckets(layout) )
+				throw new IOException("Bad usage summary bucket " + bucket);
+			int n = EntityCodec.readVarint(in);
+			long sum = in.readLong();
+			
+			if( layout != EXACT_BITS ) {
+				long low = lowerBound(bucket, layout);
+				bucket = bucketOf(low >= EXACT_LIMIT || n == 0 ? (int) low : (int) (sum / n));
+			}
+			
+			counts[bucket] += n;
+			sums[bucket] += sum;
+			count += n;
+			total += sum;
+		}
+	}
+
+	/**
+	 * Sends only the buckets in use
+	 *
+	 * @Override
+	 * @param out ObjectOutputStream
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		write(out);
+	}
+
+	/**
+	 * @Override
+	 * @param in ObjectInputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		counts = new int[BUCKETS];
+		sums = new long[BUCKETS];
+		readBuckets(in, exactBits == 0 ? LEGACY_EXACT_BITS : exactBits);
+		exactBits = EXACT_BITS;
+	}
+
+	/**
+	 * Gets the part of a bucket's sum below a threshold inside it, assuming its readings are spread evenly
+	 */
+	private long partBelow(int bucket, int threshold) {
+		long low = lowerBound(bucket);
+		if( threshold <= low || sums[bucket] == 0 )
+			return 0;
+		long width = lowerBound(bucket + 1) - low;
+		return Math.round(sums[bucket] * (double) (threshold - low) / width);
+	}
+
+	/**
+	 * Gets the bucket a reading falls in
+	 */
+	private static int bucketOf(int reading) {
+		if( reading < EXACT_LIMIT )
+			return reading;
+		int octave = 31 - Integer.numberOfLeadingZeros(reading);
+		int sub = (reading >>> (octave - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return EXACT_LIMIT + (octave - EXACT_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the smallest reading that falls in a bucket
+	 */
+	private static long lowerBound(int bucket) {
+		return lowerBound(bucket, EXACT_BITS);
+	}
+
+	/**
+	 * Gets the smallest reading that falls in a bucket of a layout with 2^exactBits exact buckets
+	 */
+	private static long lowerBound(int bucket, int exactBits) {
+		int exactLimit = 1 << exactBits;
+		if( bucket < exactLimit )
+			return bucket;
+		if( bucket >= buckets(exactBits) )
+			return 1L << 31;
+		int octave = exactBits + (bucket - exactLimit) / SUB_BUCKETS;
+		int sub = (bucket - exactLimit) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (octave - SUB_BITS);
+	}
+
+	/**
+	 * Gets the number of buckets in a layout with 2^exactBits exact buckets
+	 */
+	private static int buckets(int exactBits) {
+		return (1 << exactBits) + (31 - exactBits) * SUB_BUCKETS;
+	}
+}